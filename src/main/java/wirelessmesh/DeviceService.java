@@ -1,7 +1,11 @@
 package wirelessmesh;
 
 import java.io.IOException;
+import java.util.List;
 
 public interface DeviceService {
-    void toggleNightlight(String accessToken, String deviceId) throws IOException;
+    /**
+     * Set the nightlight of several devices sharing an access token to the same state, in a single call.
+     */
+    void setNightlight(String accessToken, List<String> deviceIds, boolean nightlightOn) throws IOException;
 }
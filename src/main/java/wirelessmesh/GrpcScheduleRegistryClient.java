@@ -0,0 +1,77 @@
+package wirelessmesh;
+
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.Message;
+import io.grpc.CallOptions;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.MethodDescriptor;
+import io.grpc.StatusRuntimeException;
+import io.grpc.protobuf.ProtoUtils;
+import io.grpc.stub.ClientCalls;
+import wirelessmeshservice.Wirelessmeshservice;
+import wirelessmeshservice.Wirelessmeshservice.ClaimScheduleShardsCommand;
+import wirelessmeshservice.Wirelessmeshservice.GetScheduleShardChangesCommand;
+import wirelessmeshservice.Wirelessmeshservice.ScheduleShardChanges;
+import wirelessmeshservice.Wirelessmeshservice.ScheduleShardLeases;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Calls the nightlight schedule registry and the scheduler leases through the cloudstate proxy, in the same way as any
+ * other client of the services. The proxy is found through the CLOUDSTATE_PROXY_HOST and CLOUDSTATE_PROXY_PORT
+ * environment variables, defaulting to the sidecar on localhost:9000.
+ */
+public class GrpcScheduleRegistryClient implements ScheduleRegistryClient {
+
+    private static final long DEADLINE_MS = 10000;
+
+    private static final MethodDescriptor<ClaimScheduleShardsCommand, ScheduleShardLeases> CLAIM_SCHEDULE_SHARDS =
+            method("NightlightSchedulerLeaseService", "ClaimScheduleShards",
+                    ClaimScheduleShardsCommand.getDefaultInstance(), ScheduleShardLeases.getDefaultInstance());
+
+    private static final MethodDescriptor<GetScheduleShardChangesCommand, ScheduleShardChanges> GET_SCHEDULE_SHARD_CHANGES =
+            method("NightlightScheduleRegistryService", "GetScheduleShardChanges",
+                    GetScheduleShardChangesCommand.getDefaultInstance(), ScheduleShardChanges.getDefaultInstance());
+
+    private final ManagedChannel channel;
+
+    public GrpcScheduleRegistryClient() {
+        String host = System.getenv().getOrDefault("CLOUDSTATE_PROXY_HOST", "localhost");
+        int port = Integer.parseInt(System.getenv().getOrDefault("CLOUDSTATE_PROXY_PORT", "9000"));
+        this.channel = ManagedChannelBuilder.forAddress(host, port).usePlaintext().build();
+    }
+
+    public ScheduleShardLeases claimScheduleShards(ClaimScheduleShardsCommand command) throws IOException {
+        return call(CLAIM_SCHEDULE_SHARDS, command);
+    }
+
+    public ScheduleShardChanges getScheduleShardChanges(GetScheduleShardChangesCommand command) throws IOException {
+        return call(GET_SCHEDULE_SHARD_CHANGES, command);
+    }
+
+    private <Q, R> R call(MethodDescriptor<Q, R> method, Q request) throws IOException {
+        try {
+            return ClientCalls.blockingUnaryCall(channel, method,
+                    CallOptions.DEFAULT.withDeadlineAfter(DEADLINE_MS, TimeUnit.MILLISECONDS), request);
+        }
+        catch (StatusRuntimeException ex) {
+            throw new IOException("Unable to call " + method.getFullMethodName(), ex);
+        }
+    }
+
+    private static <Q extends Message, R extends Message> MethodDescriptor<Q, R> method(String serviceName,
+                                                                                        String methodName,
+                                                                                        Q request, R response) {
+        Descriptors.ServiceDescriptor service = Wirelessmeshservice.getDescriptor().findServiceByName(serviceName);
+
+        return MethodDescriptor.<Q, R>newBuilder()
+                .setType(MethodDescriptor.MethodType.UNARY)
+                .setFullMethodName(MethodDescriptor.generateFullMethodName(service.getFullName(),
+                        service.findMethodByName(methodName).getName()))
+                .setRequestMarshaller(ProtoUtils.marshaller(request))
+                .setResponseMarshaller(ProtoUtils.marshaller(response))
+                .build();
+    }
+}
@@ -0,0 +1,234 @@
+package wirelessmesh;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A hierarchical timing wheel, holding timeouts in buckets of intrusive linked lists so that both scheduling and
+ * cancelling a timeout are O(1) regardless of how many are pending.
+ *
+ * The lowest level has one bucket per tick. Each level above covers WHEEL_SIZE times the span of the one below, and
+ * its buckets are cascaded down into the lower levels as time reaches them. Timeouts beyond the span of the top level
+ * are parked in it and cascaded again until they come within range.
+ *
+ * This class is not thread safe, callers are expected to synchronize access.
+ */
+public class HierarchicalTimingWheel<T> {
+
+    private static final int WHEEL_BITS = 6;
+    private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+    private static final int LEVELS = 4;
+
+    /**
+     * The furthest a timeout can be placed from the current tick, before needing to be parked in the top level.
+     */
+    private static final long MAX_DELTA = (1L << (WHEEL_BITS * LEVELS)) - 1;
+
+    private final long tickMs;
+
+    private final Bucket<T>[][] wheels;
+
+    private long currentTick;
+
+    private int size = 0;
+
+    /**
+     * Constructor.
+     * @param tickMs the resolution of the wheel, timeouts fire on the first tick at or after their deadline.
+     * @param startMs the time at which the wheel starts turning, typically now.
+     */
+    @SuppressWarnings("unchecked")
+    public HierarchicalTimingWheel(long tickMs, long startMs) {
+        if (tickMs <= 0) {
+            throw new IllegalArgumentException("Tick must be positive");
+        }
+
+        this.tickMs = tickMs;
+        this.currentTick = startMs / tickMs;
+        this.wheels = new Bucket[LEVELS][WHEEL_SIZE];
+
+        for (int level = 0; level < LEVELS; level++) {
+            for (int slot = 0; slot < WHEEL_SIZE; slot++) {
+                wheels[level][slot] = new Bucket<T>();
+            }
+        }
+    }
+
+    /**
+     * Schedule a payload to expire at the given deadline, a deadline already passed expires on the next tick.
+     * @param deadlineMs the time at which to expire, in the same units as the start time.
+     * @param payload returned by advanceTo once expired.
+     * @return the handle with which the timeout may be cancelled.
+     */
+    public Timeout<T> schedule(long deadlineMs, T payload) {
+        long expiryTick = Math.max((deadlineMs + tickMs - 1) / tickMs, currentTick + 1);
+        Timeout<T> timeout = new Timeout<T>(this, expiryTick, payload);
+        place(timeout);
+        size++;
+        return timeout;
+    }
+
+    /**
+     * Turn the wheel up to the given time.
+     * @param nowMs the current time.
+     * @return the payloads of every timeout that expired, ordered by the tick on which they expired.
+     */
+    public List<T> advanceTo(long nowMs) {
+        List<T> expired = new ArrayList<T>();
+        long targetTick = nowMs / tickMs;
+
+        while (currentTick < targetTick) {
+            currentTick++;
+            cascade();
+
+            Bucket<T> bucket = wheels[0][(int) (currentTick & WHEEL_MASK)];
+            Timeout<T> timeout;
+
+            while ((timeout = bucket.poll()) != null) {
+                size--;
+                expired.add(timeout.payload);
+            }
+        }
+
+        return expired;
+    }
+
+    /**
+     * @return the number of timeouts pending.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * When the lower levels have wrapped around, bring the next bucket of each level above down into them. Higher
+     * levels go first, so that their timeouts can land in the buckets of the levels cascaded after them.
+     */
+    private void cascade() {
+        int wrapped = 0;
+
+        while (wrapped + 1 < LEVELS && (currentTick & ((1L << (WHEEL_BITS * (wrapped + 1))) - 1)) == 0) {
+            wrapped++;
+        }
+
+        for (int level = wrapped; level > 0; level--) {
+            Bucket<T> bucket = wheels[level][(int) ((currentTick >>> (WHEEL_BITS * level)) & WHEEL_MASK)];
+            Timeout<T> timeout;
+
+            while ((timeout = bucket.poll()) != null) {
+                place(timeout);
+            }
+        }
+    }
+
+    /**
+     * Place a timeout in the lowest level whose span covers it.
+     */
+    private void place(Timeout<T> timeout) {
+        long delta = timeout.expiryTick - currentTick;
+        long slotTick = timeout.expiryTick;
+
+        if (delta > MAX_DELTA) {
+            slotTick = currentTick + MAX_DELTA;
+            delta = MAX_DELTA;
+        }
+
+        int level = 0;
+
+        while (level < LEVELS - 1 && delta >= (1L << (WHEEL_BITS * (level + 1)))) {
+            level++;
+        }
+
+        wheels[level][(int) ((slotTick >>> (WHEEL_BITS * level)) & WHEEL_MASK)].add(timeout);
+    }
+
+    /**
+     * A pending timeout, which is its own list node within the bucket it currently sits in.
+     */
+    public static final class Timeout<T> {
+
+        private final HierarchicalTimingWheel<T> wheel;
+
+        private final long expiryTick;
+
+        private final T payload;
+
+        private Bucket<T> bucket;
+
+        private Timeout<T> prev;
+
+        private Timeout<T> next;
+
+        private Timeout(HierarchicalTimingWheel<T> wheel, long expiryTick, T payload) {
+            this.wheel = wheel;
+            this.expiryTick = expiryTick;
+            this.payload = payload;
+        }
+
+        /**
+         * Cancel the timeout, this is a no-op if it has already expired or been cancelled.
+         * @return true if the timeout was pending.
+         */
+        public boolean cancel() {
+            if (bucket == null) {
+                return false;
+            }
+
+            bucket.remove(this);
+            wheel.size--;
+            return true;
+        }
+
+        public T getPayload() {
+            return payload;
+        }
+    }
+
+    /**
+     * A doubly linked list of timeouts.
+     */
+    private static final class Bucket<T> {
+
+        private Timeout<T> head;
+
+        private void add(Timeout<T> timeout) {
+            timeout.bucket = this;
+            timeout.prev = null;
+            timeout.next = head;
+
+            if (head != null) {
+                head.prev = timeout;
+            }
+
+            head = timeout;
+        }
+
+        private void remove(Timeout<T> timeout) {
+            if (timeout.prev != null) {
+                timeout.prev.next = timeout.next;
+            }
+            else {
+                head = timeout.next;
+            }
+
+            if (timeout.next != null) {
+                timeout.next.prev = timeout.prev;
+            }
+
+            timeout.bucket = null;
+            timeout.prev = null;
+            timeout.next = null;
+        }
+
+        private Timeout<T> poll() {
+            Timeout<T> timeout = head;
+
+            if (timeout != null) {
+                remove(timeout);
+            }
+
+            return timeout;
+        }
+    }
+}
@@ -4,28 +4,38 @@ import javax.net.ssl.HttpsURLConnection;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
 
 /**
  * A LIFX restful client, for a bulb standing in for an addressable wireless mesh device.
  */
 public class LifxDeviceService implements DeviceService {
 
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+
+    private static final int READ_TIMEOUT_MS = 10000;
+
     /**
-     * This will set the device nightlight to the opposite value on the physical device (bulb).
+     * This will set the nightlight of all the given devices to the same value, as one request to the external API.
      *
      * @param accessToken Necessary for secure communication to the external API.
-     * @param deviceId The deviceId that also much match the LIFX deviceId in order to control the bulb.
+     * @param deviceIds The deviceIds, which are combined into a single LIFX selector.
+     * @param nightlightOn Whether to switch the devices on or off.
      * @throws IOException
      */
-    public void toggleNightlight(String accessToken, String deviceId) throws IOException {
-        URL url = new URL("https://api.lifx.com/v1/lights/" + deviceId + "/toggle");
+    public void setNightlight(String accessToken, List<String> deviceIds, boolean nightlightOn) throws IOException {
+        URL url = new URL("https://api.lifx.com/v1/lights/" + String.join(",", deviceIds) + "/state");
         HttpsURLConnection conn = (HttpsURLConnection) url.openConnection();
+        conn.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        conn.setReadTimeout(READ_TIMEOUT_MS);
         conn.setRequestProperty("Authorization","Bearer " + accessToken);
         conn.setRequestProperty("Content-Type","application/json");
-        conn.setRequestMethod("POST");
+        conn.setRequestMethod("PUT");
 
         conn.setDoOutput(true);
         DataOutputStream wr = new DataOutputStream(conn.getOutputStream());
+        wr.write(("{\"power\": \"" + (nightlightOn ? "on" : "off") + "\"}").getBytes(StandardCharsets.UTF_8));
         wr.flush();
         wr.close();
 
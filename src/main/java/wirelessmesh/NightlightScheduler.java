@@ -0,0 +1,433 @@
+package wirelessmesh;
+
+import wirelessmeshservice.Wirelessmeshservice.ClaimScheduleShardsCommand;
+import wirelessmeshservice.Wirelessmeshservice.GetScheduleShardChangesCommand;
+import wirelessmeshservice.Wirelessmeshservice.LocationSchedules;
+import wirelessmeshservice.Wirelessmeshservice.ScheduleShardChanges;
+import wirelessmeshservice.Wirelessmeshservice.ScheduleShardLeases;
+import wirelessmeshservice.Wirelessmeshservice.ScheduledRoom;
+
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The scheduler for nightlight automations in this process, switching the nightlights of a room on and off at the
+ * same times each day.
+ *
+ * The schedules themselves are held durably in the shards of the nightlight schedule registry, which the customer
+ * locations keep up to date. Every RENEW_INTERVAL_MS the scheduler renews its leases on the shards in a single call,
+ * then fetches from each shard it holds the locations changed since it last looked. Only the registrations of those
+ * locations are replaced in the hierarchical timing wheel, where registering and cancelling stay O(1) with millions
+ * pending. A scheduler starting up, after a deploy or a crash, so repopulates itself from the registry without any
+ * customer location having to be recovered.
+ *
+ * Across several replicas of this user function the lease entity gives each scheduler a fair share of the shards, and
+ * a transition is only fired while the leases are held, so every schedule has a single owner. The leases run from when
+ * the claim was sent, by this scheduler's clock, which is never later than when the lease entity granted them. When a
+ * replica stops, or starts and takes its share from the others, the shards changing hands are idle for up to a lease,
+ * and transitions falling due in between are skipped rather than fired late. A change made to a customer location
+ * reaches the owning scheduler at its next renewal.
+ *
+ * All the transitions falling due on the same tick are batched into set state calls per access token, room and
+ * desired state, of at most MAX_DEVICES_PER_CALL devices each. The calls are made on a bounded pool of workers, so the
+ * tick thread only ever turns the wheel and a slow device API cannot hold up other schedules.
+ */
+public class NightlightScheduler {
+
+    /**
+     * The number of registry shards, spread across the schedulers by the lease entity.
+     */
+    public static final int SHARD_COUNT = 256;
+
+    /**
+     * The id of the lease entity, a single one leases every shard.
+     */
+    public static final String LEASE_GROUP_ID = "nightlight-schedulers";
+
+    private static final long TICK_MS = 1000;
+
+    private static final long DAY_MS = TimeUnit.DAYS.toMillis(1);
+
+    private static final long RENEW_INTERVAL_MS = TimeUnit.SECONDS.toMillis(20);
+
+    /**
+     * Given up at the end of each lease, to allow for the clocks of the replicas running at slightly different rates.
+     */
+    private static final long LEASE_MARGIN_MS = TimeUnit.SECONDS.toMillis(2);
+
+    private static final int MAX_DEVICES_PER_CALL = 50;
+
+    private static final int DEVICE_THREADS = 16;
+
+    /**
+     * Calls queued beyond this are dropped with a warning, rather than letting a backlog grow without limit.
+     */
+    private static final int DEVICE_QUEUE_CAPACITY = 10000;
+
+    private static final int REGISTRY_THREADS = 8;
+
+    private final String ownerId = UUID.randomUUID().toString();
+
+    private final DeviceService deviceService;
+
+    private final ScheduleRegistryClient registryClient;
+
+    private final RegistrySignature registrySignature;
+
+    private final Clock clock;
+
+    private final Executor deviceExecutor;
+
+    private final Executor registryExecutor;
+
+    private final HierarchicalTimingWheel<Transition> wheel;
+
+    private final Map<String, Shard> shards = new HashMap<String, Shard>();
+
+    private long leaseExpiresAtMillis = 0;
+
+    private ScheduledExecutorService ticker = null;
+
+    private ScheduledExecutorService renewer = null;
+
+    /**
+     * Constructor.
+     * @param deviceService the service through which the devices are switched.
+     * @param registryClient the client through which the leases are claimed and the registry shards read.
+     * @param registrySignature the signature of the replicas, with which registry requests are signed.
+     * @param clock the source of the current time, schedule times of day are taken in the clock's UTC day.
+     */
+    public NightlightScheduler(DeviceService deviceService, ScheduleRegistryClient registryClient,
+                               RegistrySignature registrySignature, Clock clock) {
+        this(deviceService, registryClient, registrySignature, clock,
+                new ThreadPoolExecutor(DEVICE_THREADS, DEVICE_THREADS, 60, TimeUnit.SECONDS,
+                        new ArrayBlockingQueue<Runnable>(DEVICE_QUEUE_CAPACITY), daemonThreads("nightlight-device"),
+                        (r, executor) -> Logger.getAnonymousLogger().log(Level.WARNING,
+                                "Dropped scheduled nightlight call, device calls are backed up")),
+                Executors.newFixedThreadPool(REGISTRY_THREADS, daemonThreads("nightlight-registry")));
+    }
+
+    /**
+     * Constructor allowing the executors of device and registry calls to be substituted.
+     */
+    NightlightScheduler(DeviceService deviceService, ScheduleRegistryClient registryClient,
+                        RegistrySignature registrySignature, Clock clock, Executor deviceExecutor,
+                        Executor registryExecutor) {
+        this.deviceService = deviceService;
+        this.registryClient = registryClient;
+        this.registrySignature = registrySignature;
+        this.clock = clock;
+        this.deviceExecutor = deviceExecutor;
+        this.registryExecutor = registryExecutor;
+        this.wheel = new HierarchicalTimingWheel<Transition>(TICK_MS, clock.millis());
+    }
+
+    /**
+     * @return the registry shard holding the schedules of a customer location.
+     */
+    public static String shardOf(String customerLocationId) {
+        return Integer.toString(Math.floorMod(customerLocationId.hashCode(), SHARD_COUNT));
+    }
+
+    /**
+     * Claim the registry shards and begin firing schedules in the background, once every tick.
+     */
+    public synchronized void start() {
+        if (ticker == null) {
+            renewer = Executors.newSingleThreadScheduledExecutor(daemonThreads("nightlight-lease"));
+            renewer.scheduleWithFixedDelay(this::renewLeases, 0, RENEW_INTERVAL_MS, TimeUnit.MILLISECONDS);
+
+            ticker = Executors.newSingleThreadScheduledExecutor(daemonThreads("nightlight-scheduler"));
+            ticker.scheduleAtFixedRate(this::tick, TICK_MS, TICK_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Renew the leases of this scheduler, dropping the shards it no longer holds, then fetch the changes to the shards
+     * it does hold in parallel. Called by the background thread once started, or directly when driving the scheduler
+     * from a test clock.
+     */
+    public void renewLeases() {
+        long claimedAtMillis = clock.millis();
+        ScheduleShardLeases leases;
+
+        try {
+            ClaimScheduleShardsCommand claim = ClaimScheduleShardsCommand.newBuilder()
+                    .setLeaseGroupId(LEASE_GROUP_ID)
+                    .setOwnerId(ownerId)
+                    .build();
+
+            leases = registryClient.claimScheduleShards(claim.toBuilder()
+                    .setSignature(registrySignature.sign(claim))
+                    .build());
+        }
+        catch (Exception ex) {
+            // The leases held run down and firing stops once they expire.
+            Logger.getAnonymousLogger().log(Level.WARNING, "Unable to claim schedule shards-" + ex.getMessage());
+            return;
+        }
+
+        AtomicInteger failures = new AtomicInteger();
+
+        CompletableFuture.allOf(applyLeases(leases, claimedAtMillis).stream()
+                .map(shardId -> CompletableFuture.runAsync(() -> {
+                    if (!fetchChanges(shardId)) {
+                        failures.incrementAndGet();
+                    }
+                }, registryExecutor))
+                .toArray(CompletableFuture[]::new))
+                .join();
+
+        if (failures.get() > 0) {
+            Logger.getAnonymousLogger().log(Level.WARNING, "Unable to fetch " + failures + " schedule shards");
+        }
+    }
+
+    /**
+     * @return the number of schedules loaded.
+     */
+    public synchronized int size() {
+        return shards.values().stream()
+                .flatMap(s -> s.locations.values().stream())
+                .mapToInt(List::size)
+                .sum();
+    }
+
+    /**
+     * @return the number of registry shards leased.
+     */
+    synchronized int shardCount() {
+        return shards.size();
+    }
+
+    private synchronized List<String> applyLeases(ScheduleShardLeases leases, long claimedAtMillis) {
+        Set<String> leased = new HashSet<String>(leases.getShardIdsList());
+        leaseExpiresAtMillis = claimedAtMillis + leases.getLeaseMillis();
+
+        shards.entrySet().removeIf(entry -> {
+            if (!leased.contains(entry.getKey())) {
+                entry.getValue().cancel();
+                return true;
+            }
+
+            return false;
+        });
+
+        leased.forEach(shardId -> shards.computeIfAbsent(shardId, k -> new Shard()));
+        return new ArrayList<String>(leased);
+    }
+
+    /**
+     * Fetch the locations of a shard changed since the version last seen, a page at a time.
+     * @return false if the shard could not be read.
+     */
+    private boolean fetchChanges(String shardId) {
+        try {
+            boolean more = true;
+
+            while (more) {
+                GetScheduleShardChangesCommand fetch = GetScheduleShardChangesCommand.newBuilder()
+                        .setShardId(shardId)
+                        .setSinceVersion(knownVersion(shardId))
+                        .build();
+
+                ScheduleShardChanges changes = registryClient.getScheduleShardChanges(fetch.toBuilder()
+                        .setSignature(registrySignature.sign(fetch))
+                        .build());
+
+                more = applyChanges(fetch.getSinceVersion(), changes) && changes.getMore();
+            }
+
+            return true;
+        }
+        catch (Exception ex) {
+            return false;
+        }
+    }
+
+    private synchronized long knownVersion(String shardId) {
+        Shard shard = shards.get(shardId);
+        return shard == null ? -1 : shard.version;
+    }
+
+    /**
+     * Replace the registrations of each location changed, unless the shard was lost or moved on meanwhile.
+     * @return true if the changes were applied.
+     */
+    private synchronized boolean applyChanges(long sinceVersion, ScheduleShardChanges changes) {
+        Shard shard = shards.get(changes.getShardId());
+
+        if (shard == null || shard.version != sinceVersion) {
+            return false;
+        }
+
+        long now = clock.millis();
+
+        for (LocationSchedules location : changes.getLocationsList()) {
+            shard.cancel(location.getCustomerLocationId());
+            List<Registration> registrations = new ArrayList<Registration>();
+
+            for (ScheduledRoom scheduledRoom : location.getSchedulesList()) {
+                Registration registration = new Registration(location.getAccessToken(), scheduledRoom);
+                registration.on = wheel.schedule(nextOccurrence(now, scheduledRoom.getOnSecondOfDay()),
+                        new Transition(registration, true));
+                registration.off = wheel.schedule(nextOccurrence(now, scheduledRoom.getOffSecondOfDay()),
+                        new Transition(registration, false));
+                registrations.add(registration);
+            }
+
+            if (!registrations.isEmpty()) {
+                shard.locations.put(location.getCustomerLocationId(), registrations);
+            }
+        }
+
+        shard.version = changes.getVersion();
+        return true;
+    }
+
+    /**
+     * Fire every transition that has fallen due, re-arming each for the following day. Called by the background
+     * thread once started, or directly when driving the scheduler from a test clock.
+     */
+    public void tick() {
+        Map<String, Batch> batches = new LinkedHashMap<String, Batch>();
+
+        synchronized (this) {
+            long now = clock.millis();
+
+            for (Transition transition : wheel.advanceTo(now)) {
+                Registration registration = transition.registration;
+
+                if (transition.nightlightOn) {
+                    registration.on = wheel.schedule(nextOccurrence(now, registration.onSecondOfDay), transition);
+                }
+                else {
+                    registration.off = wheel.schedule(nextOccurrence(now, registration.offSecondOfDay), transition);
+                }
+
+                if (now >= leaseExpiresAtMillis - LEASE_MARGIN_MS) {
+                    continue; // The lease may have passed to another scheduler, which will fire this instead.
+                }
+
+                String batchKey = registration.accessToken + "/" + registration.room + "/" + transition.nightlightOn;
+                batches.computeIfAbsent(batchKey, k -> new Batch(registration.accessToken, transition.nightlightOn))
+                        .deviceIds.addAll(registration.deviceIds);
+            }
+        }
+
+        for (Batch batch : batches.values()) {
+            List<String> deviceIds = new ArrayList<String>(batch.deviceIds);
+
+            for (int from = 0; from < deviceIds.size(); from += MAX_DEVICES_PER_CALL) {
+                List<String> chunk = deviceIds.subList(from, Math.min(from + MAX_DEVICES_PER_CALL, deviceIds.size()));
+                deviceExecutor.execute(() -> setNightlight(batch.accessToken, chunk, batch.nightlightOn));
+            }
+        }
+    }
+
+    private void setNightlight(String accessToken, List<String> deviceIds, boolean nightlightOn) {
+        try {
+            deviceService.setNightlight(accessToken, deviceIds, nightlightOn);
+        }
+        catch (Exception ex) {
+            Logger.getAnonymousLogger().log(Level.WARNING, "Unable to set scheduled nightlight-" + ex.getMessage());
+        }
+    }
+
+    /**
+     * The first time strictly after now that falls on the given second of the UTC day.
+     */
+    private static long nextOccurrence(long now, int secondOfDay) {
+        long next = now - Math.floorMod(now, DAY_MS) + TimeUnit.SECONDS.toMillis(secondOfDay);
+        return next > now ? next : next + DAY_MS;
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        return r -> {
+            Thread thread = new Thread(r, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private static class Shard {
+        private long version = 0;
+        private final Map<String, List<Registration>> locations = new HashMap<String, List<Registration>>();
+
+        private void cancel(String customerLocationId) {
+            List<Registration> registrations = locations.remove(customerLocationId);
+
+            if (registrations != null) {
+                registrations.forEach(Registration::cancel);
+            }
+        }
+
+        private void cancel() {
+            locations.values().forEach(registrations -> registrations.forEach(Registration::cancel));
+            locations.clear();
+        }
+    }
+
+    private static class Registration {
+        private final String accessToken;
+        private final String room;
+        private final List<String> deviceIds;
+        private final int onSecondOfDay;
+        private final int offSecondOfDay;
+        private HierarchicalTimingWheel.Timeout<Transition> on;
+        private HierarchicalTimingWheel.Timeout<Transition> off;
+
+        private Registration(String accessToken, ScheduledRoom scheduledRoom) {
+            this.accessToken = accessToken;
+            this.room = scheduledRoom.getRoom();
+            this.deviceIds = scheduledRoom.getDeviceIdsList();
+            this.onSecondOfDay = scheduledRoom.getOnSecondOfDay();
+            this.offSecondOfDay = scheduledRoom.getOffSecondOfDay();
+        }
+
+        private void cancel() {
+            on.cancel();
+            off.cancel();
+        }
+    }
+
+    private static class Transition {
+        private final Registration registration;
+        private final boolean nightlightOn;
+
+        private Transition(Registration registration, boolean nightlightOn) {
+            this.registration = registration;
+            this.nightlightOn = nightlightOn;
+        }
+    }
+
+    private static class Batch {
+        private final String accessToken;
+        private final boolean nightlightOn;
+        private final Set<String> deviceIds = new LinkedHashSet<String>();
+
+        private Batch(String accessToken, boolean nightlightOn) {
+            this.accessToken = accessToken;
+            this.nightlightOn = nightlightOn;
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package wirelessmesh;
+
+import com.google.protobuf.Message;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Base64;
+
+/**
+ * Signs and verifies the requests made to the nightlight schedule registry and the scheduler leases.
+ *
+ * Those services are only meant for this user function, but like every entity service they can be reached by anyone
+ * able to call the proxy. Their requests therefore carry an HMAC, keyed with a secret shared by every replica and taken
+ * from the SCHEDULE_REGISTRY_SECRET environment variable. Without the secret nothing can be signed or verified, so
+ * nightlight schedules are refused rather than left open.
+ */
+public class RegistrySignature {
+
+    private static final String ALGORITHM = "HmacSHA256";
+
+    private final byte[] secret;
+
+    /**
+     * Constructor.
+     * @param secret the secret shared by the replicas, empty if none has been configured.
+     */
+    public RegistrySignature(String secret) {
+        this.secret = secret.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the signature of the replicas, as configured through the environment.
+     */
+    public static RegistrySignature fromEnvironment() {
+        return new RegistrySignature(System.getenv().getOrDefault("SCHEDULE_REGISTRY_SECRET", ""));
+    }
+
+    /**
+     * @param request the request, built without its signature.
+     * @return the signature to set on the request.
+     */
+    public String sign(Message request) {
+        if (secret.length == 0) {
+            throw new IllegalStateException("SCHEDULE_REGISTRY_SECRET must be set to use nightlight schedules");
+        }
+
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(new SecretKeySpec(secret, ALGORITHM));
+            return Base64.getEncoder().encodeToString(mac.doFinal(request.toByteArray()));
+        }
+        catch (GeneralSecurityException ex) {
+            throw new IllegalStateException(ALGORITHM + " is not available", ex);
+        }
+    }
+
+    /**
+     * @param request the request, with its signature cleared.
+     * @param signature the signature the request arrived with.
+     * @return true if the request was signed by a replica.
+     */
+    public boolean verify(Message request, String signature) {
+        return secret.length > 0 && MessageDigest.isEqual(sign(request).getBytes(StandardCharsets.UTF_8),
+                signature.getBytes(StandardCharsets.UTF_8));
+    }
+}
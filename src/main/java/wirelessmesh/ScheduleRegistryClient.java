@@ -0,0 +1,24 @@
+package wirelessmesh;
+
+import wirelessmeshservice.Wirelessmeshservice.ClaimScheduleShardsCommand;
+import wirelessmeshservice.Wirelessmeshservice.GetScheduleShardChangesCommand;
+import wirelessmeshservice.Wirelessmeshservice.ScheduleShardChanges;
+import wirelessmeshservice.Wirelessmeshservice.ScheduleShardLeases;
+
+import java.io.IOException;
+
+public interface ScheduleRegistryClient {
+    /**
+     * Claim or renew the leases of a scheduler on its share of the registry shards.
+     * @param command the signed claim, naming the claimant
+     * @return the shards now leased to the claimant
+     */
+    ScheduleShardLeases claimScheduleShards(ClaimScheduleShardsCommand command) throws IOException;
+
+    /**
+     * Fetch the locations of a registry shard changed since a version.
+     * @param command the signed request, naming the shard and the version last seen
+     * @return a page of the changed locations, oldest change first
+     */
+    ScheduleShardChanges getScheduleShardChanges(GetScheduleShardChangesCommand command) throws IOException;
+}
@@ -3,20 +3,35 @@ package wirelessmesh;
 import io.cloudstate.javasupport.CloudState;
 
 import wirelessmesh.domain.CustomerLocationEntity;
+import wirelessmesh.domain.NightlightScheduleRegistryEntity;
+import wirelessmesh.domain.NightlightSchedulerLeaseEntity;
 import wirelessmeshservice.Wirelessmeshservice;
 import wirelessmeshdomain.*;
 
+import java.time.Clock;
+
 /**
  * This is the entry point into this user function.
  */
 public class WirelessMeshMain {
 
     public static void main(String... args) {
+        new NightlightScheduler(new LifxDeviceService(), new GrpcScheduleRegistryClient(),
+                RegistrySignature.fromEnvironment(), Clock.systemUTC()).start();
+
         new CloudState()
                 .registerEventSourcedEntity(
                         CustomerLocationEntity.class,
                         Wirelessmeshservice.getDescriptor().findServiceByName("WirelessMeshService"),
                         Wirelessmeshdomain.getDescriptor())
+                .registerEventSourcedEntity(
+                        NightlightScheduleRegistryEntity.class,
+                        Wirelessmeshservice.getDescriptor().findServiceByName("NightlightScheduleRegistryService"),
+                        Wirelessmeshdomain.getDescriptor())
+                .registerEventSourcedEntity(
+                        NightlightSchedulerLeaseEntity.class,
+                        Wirelessmeshservice.getDescriptor().findServiceByName("NightlightSchedulerLeaseService"),
+                        Wirelessmeshdomain.getDescriptor())
                 .start();
     }
 }
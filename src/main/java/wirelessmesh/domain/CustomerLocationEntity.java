@@ -1,7 +1,9 @@
  package wirelessmesh.domain;
 
  import com.google.protobuf.Empty;
+ import com.google.protobuf.Message;
  import io.cloudstate.javasupport.EntityId;
+ import io.cloudstate.javasupport.ServiceCallRef;
  import io.cloudstate.javasupport.eventsourced.CommandContext;
  import io.cloudstate.javasupport.eventsourced.CommandHandler;
  import io.cloudstate.javasupport.eventsourced.EventHandler;
@@ -10,12 +12,15 @@
  import wirelessmesh.DeviceService;
  import wirelessmesh.GooglePubsubService;
  import wirelessmesh.LifxDeviceService;
+ import wirelessmesh.NightlightScheduler;
  import wirelessmesh.PubsubService;
+ import wirelessmesh.RegistrySignature;
  import wirelessmeshdomain.Wirelessmeshdomain.*;
  import wirelessmeshservice.Wirelessmeshservice.*;
 
  import java.io.IOException;
  import java.util.ArrayList;
+ import java.util.Collections;
  import java.util.List;
  import java.util.Optional;
  import java.util.stream.Collectors;
@@ -35,8 +40,16 @@
  @EventSourcedEntity
  public class CustomerLocationEntity {
 
-     private PubsubService pubsubService = new GooglePubsubService();
-     private DeviceService deviceService = new LifxDeviceService();
+     /**
+      * The number of idempotency keys remembered per customer location, retries older than this are re-applied.
+      */
+     private static final int IDEMPOTENCY_CACHE_CAPACITY = 1000;
+
+     private static final String SCHEDULE_REGISTRY_SERVICE = "wirelessmeshservice.NightlightScheduleRegistryService";
+
+     private final PubsubService pubsubService;
+     private final DeviceService deviceService;
+     private final RegistrySignature registrySignature;
 
      /**
       * This section contains the private state variables necessary for this entity.
@@ -52,12 +65,28 @@
 
      private List<Device> devices = new ArrayList<Device>();
 
+     private List<NightlightSchedule> nightlightSchedules = new ArrayList<NightlightSchedule>();
+
+     private IdempotencyCache appliedCommands = new IdempotencyCache(IDEMPOTENCY_CACHE_CAPACITY);
+
      /**
       * Constructor.
       * @param customerLocationId The entity id will be the customerLocationId, the unique key for this entity.
       */
      public CustomerLocationEntity(@EntityId String customerLocationId) {
+         this(customerLocationId, new LifxDeviceService(), new GooglePubsubService(), RegistrySignature.fromEnvironment());
+     }
+
+     /**
+      * Constructor allowing the external services to be substituted, only one public constructor is allowed on an
+      * event sourced entity.
+      */
+     CustomerLocationEntity(String customerLocationId, DeviceService deviceService, PubsubService pubsubService,
+                            RegistrySignature registrySignature) {
          this.customerLocationId = customerLocationId;
+         this.deviceService = deviceService;
+         this.pubsubService = pubsubService;
+         this.registrySignature = registrySignature;
      }
 
      /**
@@ -68,6 +97,10 @@
       */
      @CommandHandler
      public Empty addCustomerLocation(AddCustomerLocationCommand addCustomerLocationCommand, CommandContext ctx) {
+         if (alreadyApplied(addCustomerLocationCommand, addCustomerLocationCommand.getIdempotencyKey(), ctx)) {
+             return Empty.getDefaultInstance(); // A retry is acknowledged unchanged, a reused key has already been failed.
+         }
+
          if (added) {
              ctx.fail("Customer location already added");
          }
@@ -81,6 +114,8 @@
              CustomerLocationAdded event = CustomerLocationAdded.newBuilder()
                      .setCustomerLocationId(addCustomerLocationCommand.getCustomerLocationId())
                      .setAccessToken(addCustomerLocationCommand.getAccessToken())
+                     .setIdempotencyKey(addCustomerLocationCommand.getIdempotencyKey())
+                     .setIdempotencyFingerprint(fingerprint(addCustomerLocationCommand, addCustomerLocationCommand.getIdempotencyKey()))
                      .build();
 
              ctx.emit(event);
@@ -101,6 +136,8 @@
          this.added = true;
          this.removed = false;
          this.accessToken = customerLocationAdded.getAccessToken();
+         appliedCommands.record(AddCustomerLocationCommand.getDescriptor(), customerLocationAdded.getIdempotencyKey(),
+                 customerLocationAdded.getIdempotencyFingerprint());
      }
 
      /**
@@ -111,6 +148,10 @@
       */
      @CommandHandler
      public Empty removeCustomerLocation(RemoveCustomerLocationCommand removeCustomerLocationCommand, CommandContext ctx) {
+         if (alreadyApplied(removeCustomerLocationCommand, removeCustomerLocationCommand.getIdempotencyKey(), ctx)) {
+             return Empty.getDefaultInstance();
+         }
+
          if (!added) {
              ctx.fail("Customer location does not exist");
          }
@@ -120,10 +161,16 @@
          else {
              CustomerLocationRemoved event = CustomerLocationRemoved.newBuilder()
                      .setCustomerLocationId(removeCustomerLocationCommand.getCustomerLocationId())
+                     .setIdempotencyKey(removeCustomerLocationCommand.getIdempotencyKey())
+                     .setIdempotencyFingerprint(fingerprint(removeCustomerLocationCommand, removeCustomerLocationCommand.getIdempotencyKey()))
                      .build();
 
              ctx.emit(event);
              pubsubService.publish(event.toByteString());
+
+             if (!nightlightSchedules.isEmpty()) {
+                 updateScheduleRegistry(ctx, Collections.emptyList(), Collections.emptyList());
+             }
          }
 
          return Empty.getDefaultInstance();
@@ -140,6 +187,9 @@
          this.removed = true;
          this.added = false;
          devices = new ArrayList<Device>();
+         nightlightSchedules = new ArrayList<NightlightSchedule>();
+         appliedCommands.record(RemoveCustomerLocationCommand.getDescriptor(), customerLocationRemoved.getIdempotencyKey(),
+                 customerLocationRemoved.getIdempotencyFingerprint());
      }
 
      /**
@@ -150,6 +200,10 @@
       */
      @CommandHandler
      public Empty activateDevice(ActivateDeviceCommand activateDeviceCommand, CommandContext ctx) {
+         if (alreadyApplied(activateDeviceCommand, activateDeviceCommand.getIdempotencyKey(), ctx)) {
+             return Empty.getDefaultInstance();
+         }
+
          if (removed) {
              ctx.fail("customerLocation does not exist.");
          }
@@ -163,6 +217,8 @@
              DeviceActivated event = DeviceActivated.newBuilder()
                      .setDeviceId(activateDeviceCommand.getDeviceId())
                      .setCustomerLocationId(activateDeviceCommand.getCustomerLocationId())
+                     .setIdempotencyKey(activateDeviceCommand.getIdempotencyKey())
+                     .setIdempotencyFingerprint(fingerprint(activateDeviceCommand, activateDeviceCommand.getIdempotencyKey()))
                      .build();
 
              ctx.emit(event);
@@ -186,6 +242,9 @@
                  .setActivated(true)
                  .setNightlightOn(false)
                  .build());
+
+         appliedCommands.record(ActivateDeviceCommand.getDescriptor(), deviceActivated.getIdempotencyKey(),
+                 deviceActivated.getIdempotencyFingerprint());
      }
 
      /**
@@ -196,6 +255,10 @@
       */
      @CommandHandler
      public Empty removeDevice(RemoveDeviceCommand removeDeviceCommand, CommandContext ctx) {
+         if (alreadyApplied(removeDeviceCommand, removeDeviceCommand.getIdempotencyKey(), ctx)) {
+             return Empty.getDefaultInstance();
+         }
+
          if (!added || removed) {
              ctx.fail("customerLocation does not exist.");
          }
@@ -205,10 +268,17 @@
          else {
              DeviceRemoved event = DeviceRemoved.newBuilder()
                      .setDeviceId(removeDeviceCommand.getDeviceId())
-                     .setCustomerLocationId(removeDeviceCommand.getCustomerLocationId()).build();
+                     .setCustomerLocationId(removeDeviceCommand.getCustomerLocationId())
+                     .setIdempotencyKey(removeDeviceCommand.getIdempotencyKey())
+                     .setIdempotencyFingerprint(fingerprint(removeDeviceCommand, removeDeviceCommand.getIdempotencyKey())).build();
 
              ctx.emit(event);
              pubsubService.publish(event.toByteString());
+
+             if (!nightlightSchedules.isEmpty()) {
+                 // The schedules follow the devices in their rooms.
+                 updateScheduleRegistry(ctx, nightlightSchedules, devicesAfter(devices, event));
+             }
          }
 
          return Empty.getDefaultInstance();
@@ -222,8 +292,10 @@
       */
      @EventHandler
      public void deviceRemoved(DeviceRemoved deviceRemoved) {
-         devices = devices.stream().filter(d -> !d.getDeviceId().equals(deviceRemoved.getDeviceId()))
-                 .collect(Collectors.toList());
+         devices = devicesAfter(devices, deviceRemoved);
+
+         appliedCommands.record(RemoveDeviceCommand.getDescriptor(), deviceRemoved.getIdempotencyKey(),
+                 deviceRemoved.getIdempotencyFingerprint());
      }
 
      /**
@@ -234,6 +306,10 @@
       */
      @CommandHandler
      public Empty assignRoom(AssignRoomCommand assignRoomCommand, CommandContext ctx) {
+         if (alreadyApplied(assignRoomCommand, assignRoomCommand.getIdempotencyKey(), ctx)) {
+             return Empty.getDefaultInstance();
+         }
+
          if (removed) {
              ctx.fail("customerLocation does not exist.");
          }
@@ -247,10 +323,16 @@
              RoomAssigned event = RoomAssigned.newBuilder()
                      .setDeviceId(assignRoomCommand.getDeviceId())
                      .setCustomerLocationId(assignRoomCommand.getCustomerLocationId())
-                     .setRoom(assignRoomCommand.getRoom()).build();
+                     .setRoom(assignRoomCommand.getRoom())
+                     .setIdempotencyKey(assignRoomCommand.getIdempotencyKey())
+                     .setIdempotencyFingerprint(fingerprint(assignRoomCommand, assignRoomCommand.getIdempotencyKey())).build();
 
              ctx.emit(event);
              pubsubService.publish(event.toByteString());
+
+             if (!nightlightSchedules.isEmpty()) {
+                 updateScheduleRegistry(ctx, nightlightSchedules, devicesAfter(devices, event));
+             }
          }
 
          return Empty.getDefaultInstance();
@@ -264,12 +346,9 @@
       */
      @EventHandler
      public void roomAssigned(RoomAssigned roomAssigned) {
-         Device old = findDevice(roomAssigned.getDeviceId()).get();
-         Device device = old.toBuilder()
-                 .setRoom(roomAssigned.getRoom())
-                 .build();
-
-         replaceDevice(device);
+         devices = devicesAfter(devices, roomAssigned);
+         appliedCommands.record(AssignRoomCommand.getDescriptor(), roomAssigned.getIdempotencyKey(),
+                 roomAssigned.getIdempotencyFingerprint());
      }
 
      /**
@@ -280,6 +359,10 @@
       */
      @CommandHandler
      public Empty toggleNightlight(ToggleNightlightCommand toggleNightlightCommand, CommandContext ctx) throws IOException {
+         if (alreadyApplied(toggleNightlightCommand, toggleNightlightCommand.getIdempotencyKey(), ctx)) {
+             return Empty.getDefaultInstance();
+         }
+
          if (removed) {
              ctx.fail("customerLocation does not exist.");
          }
@@ -293,10 +376,15 @@
                  NightlightToggled event = NightlightToggled.newBuilder()
                          .setDeviceId(toggleNightlightCommand.getDeviceId())
                          .setCustomerLocationId(toggleNightlightCommand.getCustomerLocationId())
-                         .setNightlightOn(!deviceMaybe.get().getNightlightOn()).build();
+                         .setNightlightOn(!deviceMaybe.get().getNightlightOn())
+                         .setIdempotencyKey(toggleNightlightCommand.getIdempotencyKey())
+                         .setIdempotencyFingerprint(fingerprint(toggleNightlightCommand, toggleNightlightCommand.getIdempotencyKey())).build();
 
                  ctx.emit(event);
-                 deviceService.toggleNightlight(accessToken, toggleNightlightCommand.getDeviceId());
+                 // Set rather than flip the bulb, so that it ends up in the recorded state even if a schedule has
+                 // switched it since.
+                 deviceService.setNightlight(accessToken, Collections.singletonList(event.getDeviceId()),
+                         event.getNightlightOn());
                  pubsubService.publish(event.toByteString());
              }
          }
@@ -317,7 +405,118 @@
                  .setNightlightOn(nightlightToggled.getNightlightOn())
                  .build();
 
-         replaceDevice(device);
+         devices = replaceDevice(devices, device);
+         appliedCommands.record(ToggleNightlightCommand.getDescriptor(), nightlightToggled.getIdempotencyKey(),
+                 nightlightToggled.getIdempotencyFingerprint());
+     }
+
+     /**
+      * This is the command handler for scheduling the nightlights of a room as defined in protobuf.
+      * @param scheduleNightlightCommand the command message from protobuf
+      * @param ctx the application context
+      * @return Empty (unused)
+      */
+     @CommandHandler
+     public Empty scheduleNightlight(ScheduleNightlightCommand scheduleNightlightCommand, CommandContext ctx) {
+         if (alreadyApplied(scheduleNightlightCommand, scheduleNightlightCommand.getIdempotencyKey(), ctx)) {
+             return Empty.getDefaultInstance();
+         }
+
+         if (!added || removed) {
+             ctx.fail("customerLocation does not exist.");
+         }
+         else if (scheduleNightlightCommand.getScheduleId().isEmpty()
+                 || !isAlphaNumeric(scheduleNightlightCommand.getScheduleId())) {
+             ctx.fail("Schedule id must be alphanumeric");
+         }
+         else if (scheduleNightlightCommand.getRoom().isEmpty()
+                 || !isAlphaNumeric(scheduleNightlightCommand.getRoom())) {
+             ctx.fail("Room must be alphanumeric");
+         }
+         else if (!isSecondOfDay(scheduleNightlightCommand.getOnSecondOfDay())
+                 || !isSecondOfDay(scheduleNightlightCommand.getOffSecondOfDay())) {
+             ctx.fail("Schedule times must be a second of the day");
+         }
+         else if (scheduleNightlightCommand.getOnSecondOfDay() == scheduleNightlightCommand.getOffSecondOfDay()) {
+             ctx.fail("Schedule on and off times must differ");
+         }
+         else {
+             NightlightScheduled event = NightlightScheduled.newBuilder()
+                     .setScheduleId(scheduleNightlightCommand.getScheduleId())
+                     .setCustomerLocationId(scheduleNightlightCommand.getCustomerLocationId())
+                     .setRoom(scheduleNightlightCommand.getRoom())
+                     .setOnSecondOfDay(scheduleNightlightCommand.getOnSecondOfDay())
+                     .setOffSecondOfDay(scheduleNightlightCommand.getOffSecondOfDay())
+                     .setIdempotencyKey(scheduleNightlightCommand.getIdempotencyKey())
+                     .setIdempotencyFingerprint(fingerprint(scheduleNightlightCommand, scheduleNightlightCommand.getIdempotencyKey())).build();
+
+             ctx.emit(event);
+             pubsubService.publish(event.toByteString());
+             updateScheduleRegistry(ctx, schedulesAfter(nightlightSchedules, event), devices);
+         }
+
+         return Empty.getDefaultInstance();
+     }
+
+     /**
+      * This is the event handler for scheduling the nightlights of a room. It is here we update current state due to
+      * successful storage to the eventlog.
+      *
+      * @param nightlightScheduled the event previously emitted in the command handler, now safely stored.
+      */
+     @EventHandler
+     public void nightlightScheduled(NightlightScheduled nightlightScheduled) {
+         nightlightSchedules = schedulesAfter(nightlightSchedules, nightlightScheduled);
+
+         appliedCommands.record(ScheduleNightlightCommand.getDescriptor(), nightlightScheduled.getIdempotencyKey(),
+                 nightlightScheduled.getIdempotencyFingerprint());
+     }
+
+     /**
+      * This is the command handler for cancelling a nightlight schedule as defined in protobuf.
+      * @param cancelNightlightScheduleCommand the command message from protobuf
+      * @param ctx the application context
+      * @return Empty (unused)
+      */
+     @CommandHandler
+     public Empty cancelNightlightSchedule(CancelNightlightScheduleCommand cancelNightlightScheduleCommand, CommandContext ctx) {
+         if (alreadyApplied(cancelNightlightScheduleCommand, cancelNightlightScheduleCommand.getIdempotencyKey(), ctx)) {
+             return Empty.getDefaultInstance();
+         }
+
+         if (!added || removed) {
+             ctx.fail("customerLocation does not exist.");
+         }
+         else if (!findNightlightSchedule(cancelNightlightScheduleCommand.getScheduleId()).isPresent()) {
+             ctx.fail("Schedule does not exist");
+         }
+         else {
+             NightlightScheduleCancelled event = NightlightScheduleCancelled.newBuilder()
+                     .setScheduleId(cancelNightlightScheduleCommand.getScheduleId())
+                     .setCustomerLocationId(cancelNightlightScheduleCommand.getCustomerLocationId())
+                     .setIdempotencyKey(cancelNightlightScheduleCommand.getIdempotencyKey())
+                     .setIdempotencyFingerprint(fingerprint(cancelNightlightScheduleCommand, cancelNightlightScheduleCommand.getIdempotencyKey())).build();
+
+             ctx.emit(event);
+             pubsubService.publish(event.toByteString());
+             updateScheduleRegistry(ctx, schedulesAfter(nightlightSchedules, event), devices);
+         }
+
+         return Empty.getDefaultInstance();
+     }
+
+     /**
+      * This is the event handler for cancelling a nightlight schedule. It is here we update current state due to
+      * successful storage to the eventlog.
+      *
+      * @param nightlightScheduleCancelled the event previously emitted in the command handler, now safely stored.
+      */
+     @EventHandler
+     public void nightlightScheduleCancelled(NightlightScheduleCancelled nightlightScheduleCancelled) {
+         nightlightSchedules = schedulesAfter(nightlightSchedules, nightlightScheduleCancelled);
+
+         appliedCommands.record(CancelNightlightScheduleCommand.getDescriptor(),
+                 nightlightScheduleCancelled.getIdempotencyKey(), nightlightScheduleCancelled.getIdempotencyFingerprint());
      }
 
      /**
@@ -336,7 +535,8 @@
                  .setAccessToken(accessToken)
                  .setAdded(added)
                  .setRemoved(removed)
-                 .addAllDevices(devices).build();
+                 .addAllDevices(devices)
+                 .addAllNightlightSchedules(nightlightSchedules).build();
      }
 
      /**
@@ -351,13 +551,135 @@
      /**
       * Helper function to replace the state of a given device within the device collection.
       */
-     private void replaceDevice(Device device) {
-         devices = Stream.concat(devices.stream()
+     private static List<Device> replaceDevice(List<Device> devices, Device device) {
+         return Stream.concat(devices.stream()
                          .filter(d -> !d.getDeviceId().equals(device.getDeviceId())),
                  Stream.of(device))
                  .collect(Collectors.toList());
      }
 
+     /**
+      * The devices once a device is removed, used by the event handler and, ahead of it, by the command handler.
+      */
+     private static List<Device> devicesAfter(List<Device> devices, DeviceRemoved deviceRemoved) {
+         return devices.stream()
+                 .filter(d -> !d.getDeviceId().equals(deviceRemoved.getDeviceId()))
+                 .collect(Collectors.toList());
+     }
+
+     /**
+      * The devices once a device is assigned to a room.
+      */
+     private static List<Device> devicesAfter(List<Device> devices, RoomAssigned roomAssigned) {
+         return devices.stream()
+                 .filter(d -> d.getDeviceId().equals(roomAssigned.getDeviceId()))
+                 .findFirst()
+                 .map(d -> replaceDevice(devices, d.toBuilder().setRoom(roomAssigned.getRoom()).build()))
+                 .orElse(devices);
+     }
+
+     /**
+      * The schedules once a schedule is added or replaced.
+      */
+     private static List<NightlightSchedule> schedulesAfter(List<NightlightSchedule> schedules,
+                                                            NightlightScheduled nightlightScheduled) {
+         NightlightSchedule schedule = NightlightSchedule.newBuilder()
+                 .setScheduleId(nightlightScheduled.getScheduleId())
+                 .setRoom(nightlightScheduled.getRoom())
+                 .setOnSecondOfDay(nightlightScheduled.getOnSecondOfDay())
+                 .setOffSecondOfDay(nightlightScheduled.getOffSecondOfDay())
+                 .build();
+
+         return Stream.concat(schedules.stream()
+                         .filter(s -> !s.getScheduleId().equals(schedule.getScheduleId())),
+                 Stream.of(schedule))
+                 .collect(Collectors.toList());
+     }
+
+     /**
+      * The schedules once a schedule is cancelled.
+      */
+     private static List<NightlightSchedule> schedulesAfter(List<NightlightSchedule> schedules,
+                                                            NightlightScheduleCancelled nightlightScheduleCancelled) {
+         return schedules.stream()
+                 .filter(s -> !s.getScheduleId().equals(nightlightScheduleCancelled.getScheduleId()))
+                 .collect(Collectors.toList());
+     }
+
+     /**
+      * Helper function to check a command against the idempotency keys already applied. A retry of the same command
+      * needs no further handling, while a key reused for a different command is failed.
+      * @return true if the command has been dealt with.
+      */
+     private boolean alreadyApplied(Message command, String idempotencyKey, CommandContext ctx) {
+         String applied = appliedCommands.fingerprintOf(command.getDescriptorForType(), idempotencyKey);
+
+         if (applied == null) {
+             return false;
+         }
+
+         if (!applied.equals(IdempotencyCache.fingerprint(command))) {
+             ctx.fail("Idempotency key reused with a different request");
+         }
+
+         return true;
+     }
+
+     /**
+      * Helper function to fingerprint a command for its event, only needed when the client supplied a key.
+      */
+     private String fingerprint(Message command, String idempotencyKey) {
+         return idempotencyKey.isEmpty() ? "" : IdempotencyCache.fingerprint(command);
+     }
+
+     /**
+      * Helper function to find a nightlight schedule in the schedule collection.
+      */
+     private Optional<NightlightSchedule> findNightlightSchedule(String scheduleId) {
+         return nightlightSchedules.stream()
+                 .filter(s -> s.getScheduleId().equals(scheduleId))
+                 .findFirst();
+     }
+
+     /**
+      * Helper function to replace the schedules of this customer location in its shard of the schedule registry, from
+      * which the nightlight schedulers load them. Events are only applied once the command handler returns, so the
+      * schedules and devices given are those as they will be after the event just emitted. The event sequence number
+      * orders the updates, so a late or retried update never overwrites a newer one.
+      */
+     private void updateScheduleRegistry(CommandContext ctx, List<NightlightSchedule> schedules, List<Device> devices) {
+         LocationSchedules.Builder locationSchedules = LocationSchedules.newBuilder()
+                 .setCustomerLocationId(customerLocationId)
+                 .setAccessToken(accessToken)
+                 .setSequence(ctx.sequenceNumber());
+
+         schedules.forEach(schedule -> locationSchedules.addSchedules(ScheduledRoom.newBuilder()
+                 .setScheduleId(schedule.getScheduleId())
+                 .setRoom(schedule.getRoom())
+                 .setOnSecondOfDay(schedule.getOnSecondOfDay())
+                 .setOffSecondOfDay(schedule.getOffSecondOfDay())
+                 .addAllDeviceIds(devices.stream()
+                         .filter(d -> d.getRoom().equals(schedule.getRoom()))
+                         .map(Device::getDeviceId)
+                         .collect(Collectors.toList()))));
+
+         ServiceCallRef<UpdateLocationSchedulesCommand> updateLocationSchedules = ctx.serviceCallFactory()
+                 .lookup(SCHEDULE_REGISTRY_SERVICE, "UpdateLocationSchedules", UpdateLocationSchedulesCommand.class);
+
+         UpdateLocationSchedulesCommand update = UpdateLocationSchedulesCommand.newBuilder()
+                 .setShardId(NightlightScheduler.shardOf(customerLocationId))
+                 .setLocationSchedules(locationSchedules)
+                 .build();
+
+         ctx.effect(updateLocationSchedules.createCall(update.toBuilder()
+                 .setSignature(registrySignature.sign(update))
+                 .build()), true);
+     }
+
+     private boolean isSecondOfDay(int second) {
+         return second >= 0 && second < 24 * 60 * 60;
+     }
+
      private boolean isAlphaNumeric(String id) {
          return id.matches("^[a-zA-Z0-9_-]*$");
      }
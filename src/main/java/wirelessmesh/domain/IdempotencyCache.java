@@ -0,0 +1,72 @@
+package wirelessmesh.domain;
+
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Message;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded cache of the idempotency keys of commands already applied to an entity, each with a fingerprint of the
+ * command it arrived on so that a key reused for a different request can be told apart from a retry.
+ *
+ * Keys are scoped to the command type and recorded from the event handlers, so the cache is part of the entity state
+ * and is rebuilt on replay. Once full, the key recorded longest ago is evicted. Lookups deliberately do not refresh a
+ * key, which keeps the contents identical whether the state was built live or recovered from the eventlog.
+ */
+class IdempotencyCache {
+
+    private final Map<String, String> fingerprints;
+
+    /**
+     * Constructor.
+     * @param capacity the maximum number of keys retained.
+     */
+    IdempotencyCache(int capacity) {
+        this.fingerprints = new LinkedHashMap<String, String>(16, 0.75f, false) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Record a key, an empty key means the client did not supply one and is ignored.
+     * @param commandType the type of command the key arrived on.
+     * @param idempotencyKey the key supplied by the client.
+     * @param fingerprint the fingerprint of the command, as computed by fingerprint(Message).
+     */
+    void record(Descriptor commandType, String idempotencyKey, String fingerprint) {
+        if (!idempotencyKey.isEmpty()) {
+            fingerprints.put(scopedKey(commandType, idempotencyKey), fingerprint);
+        }
+    }
+
+    /**
+     * @return the fingerprint of the command of this type already applied with this key, or null if there is none.
+     */
+    String fingerprintOf(Descriptor commandType, String idempotencyKey) {
+        return idempotencyKey.isEmpty() ? null : fingerprints.get(scopedKey(commandType, idempotencyKey));
+    }
+
+    /**
+     * A digest of the whole command, which is stored on the event so that it survives replay.
+     */
+    static String fingerprint(Message command) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(command.toByteArray());
+            return Base64.getEncoder().encodeToString(digest);
+        }
+        catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 is not available", ex);
+        }
+    }
+
+    private static String scopedKey(Descriptor commandType, String idempotencyKey) {
+        return commandType.getName() + "/" + idempotencyKey;
+    }
+}
@@ -0,0 +1,176 @@
+ package wirelessmesh.domain;
+
+ import com.google.protobuf.Empty;
+ import io.cloudstate.javasupport.EntityId;
+ import io.cloudstate.javasupport.eventsourced.CommandContext;
+ import io.cloudstate.javasupport.eventsourced.CommandHandler;
+ import io.cloudstate.javasupport.eventsourced.EventHandler;
+ import io.cloudstate.javasupport.eventsourced.EventSourcedEntity;
+ import io.cloudstate.javasupport.eventsourced.Snapshot;
+ import io.cloudstate.javasupport.eventsourced.SnapshotHandler;
+
+ import wirelessmesh.NightlightScheduler;
+ import wirelessmesh.RegistrySignature;
+ import wirelessmeshdomain.Wirelessmeshdomain.*;
+ import wirelessmeshservice.Wirelessmeshservice.*;
+
+ import java.util.HashMap;
+ import java.util.Map;
+ import java.util.NavigableMap;
+ import java.util.TreeMap;
+
+ /**
+  * A shard of the nightlight schedule registry.
+  *
+  * The customer locations hashing to this shard keep their schedules here, which is what lets a nightlight scheduler
+  * load every schedule after a restart without waiting for each customer location to be recovered. Every update bumps
+  * the version of the shard, and the scheduler holding the shard fetches only the locations changed since the version
+  * it last saw, a page at a time, so a change costs the scheduler the schedules of that one location.
+  *
+  * Locations whose schedules are all removed are kept with an empty list, so that their sequence number still guards
+  * against an older update arriving late.
+  */
+ @EventSourcedEntity(persistenceId = "nightlight-schedule-registry", snapshotEvery = 100)
+ public class NightlightScheduleRegistryEntity {
+
+     /**
+      * The most locations returned by one fetch of changes, well inside the message size limit of the proxy.
+      */
+     private static final int PAGE_SIZE = 100;
+
+     private final RegistrySignature registrySignature;
+
+     /**
+      * This section contains the private state variables necessary for this entity.
+      */
+
+     private String shardId;
+
+     private Map<String, LocationSchedules> locations = new HashMap<String, LocationSchedules>();
+
+     private NavigableMap<Long, String> changes = new TreeMap<Long, String>();
+
+     private long version = 0;
+
+     /**
+      * Constructor.
+      * @param shardId The entity id will be the shard id, as given by NightlightScheduler.shardOf.
+      */
+     public NightlightScheduleRegistryEntity(@EntityId String shardId) {
+         this(shardId, RegistrySignature.fromEnvironment());
+     }
+
+     /**
+      * Constructor allowing the signature to be substituted, only one public constructor is allowed on an event
+      * sourced entity.
+      */
+     NightlightScheduleRegistryEntity(String shardId, RegistrySignature registrySignature) {
+         this.shardId = shardId;
+         this.registrySignature = registrySignature;
+     }
+
+     /**
+      * This is the command handler for replacing the schedules of a customer location as defined in protobuf.
+      * @param updateLocationSchedulesCommand the command message from protobuf
+      * @param ctx the application context
+      * @return Empty (unused)
+      */
+     @CommandHandler
+     public Empty updateLocationSchedules(UpdateLocationSchedulesCommand updateLocationSchedulesCommand, CommandContext ctx) {
+         LocationSchedules update = updateLocationSchedulesCommand.getLocationSchedules();
+         LocationSchedules current = locations.get(update.getCustomerLocationId());
+
+         if (!registrySignature.verify(updateLocationSchedulesCommand.toBuilder().clearSignature().build(),
+                 updateLocationSchedulesCommand.getSignature())) {
+             ctx.fail("Schedule registry requests must be signed");
+         }
+         else if (update.getCustomerLocationId().isEmpty()) {
+             ctx.fail("Customer location id must be supplied");
+         }
+         else if (!shardId.equals(NightlightScheduler.shardOf(update.getCustomerLocationId()))) {
+             ctx.fail("Customer location does not belong to this shard");
+         }
+         else if (current == null || update.getSequence() > current.getSequence()) {
+             ctx.emit(LocationSchedulesUpdated.newBuilder()
+                     .setShardId(updateLocationSchedulesCommand.getShardId())
+                     .setLocationSchedules(update.toBuilder().setShardVersion(version + 1))
+                     .build());
+         }
+
+         return Empty.getDefaultInstance();
+     }
+
+     /**
+      * This is the event handler for replacing the schedules of a customer location. It is here we update current
+      * state due to successful storage to the eventlog.
+      *
+      * @param locationSchedulesUpdated the event previously emitted in the command handler, now safely stored.
+      */
+     @EventHandler
+     public void locationSchedulesUpdated(LocationSchedulesUpdated locationSchedulesUpdated) {
+         putLocation(locationSchedulesUpdated.getLocationSchedules());
+         version = locationSchedulesUpdated.getLocationSchedules().getShardVersion();
+     }
+
+     /**
+      * This is the command handler for fetching the locations changed since a version as defined in protobuf.
+      * @param getScheduleShardChangesCommand the command message from protobuf
+      * @param ctx the application context
+      * @return the changed locations, oldest change first
+      */
+     @CommandHandler
+     public ScheduleShardChanges getScheduleShardChanges(GetScheduleShardChangesCommand getScheduleShardChangesCommand,
+                                                         CommandContext ctx) {
+         ScheduleShardChanges.Builder shardChanges = ScheduleShardChanges.newBuilder()
+                 .setShardId(shardId)
+                 .setVersion(version);
+
+         if (!registrySignature.verify(getScheduleShardChangesCommand.toBuilder().clearSignature().build(),
+                 getScheduleShardChangesCommand.getSignature())) {
+             ctx.fail("Schedule registry requests must be signed");
+         }
+         else {
+             for (String customerLocationId : changes.tailMap(getScheduleShardChangesCommand.getSinceVersion(), false)
+                     .values()) {
+                 if (shardChanges.getLocationsCount() == PAGE_SIZE) {
+                     shardChanges.setMore(true)
+                             .setVersion(shardChanges.getLocations(PAGE_SIZE - 1).getShardVersion());
+                     break;
+                 }
+
+                 shardChanges.addLocations(locations.get(customerLocationId));
+             }
+         }
+
+         return shardChanges.build();
+     }
+
+     @Snapshot
+     public ScheduleShardRegistrySnapshot snapshot() {
+         return ScheduleShardRegistrySnapshot.newBuilder()
+                 .setVersion(version)
+                 .addAllLocations(locations.values())
+                 .build();
+     }
+
+     @SnapshotHandler
+     public void handleSnapshot(ScheduleShardRegistrySnapshot snapshot) {
+         this.version = snapshot.getVersion();
+         this.locations = new HashMap<String, LocationSchedules>();
+         this.changes = new TreeMap<Long, String>();
+         snapshot.getLocationsList().forEach(this::putLocation);
+     }
+
+     /**
+      * Helper function to store a location, keeping the index of changes to a single entry per location.
+      */
+     private void putLocation(LocationSchedules location) {
+         LocationSchedules previous = locations.put(location.getCustomerLocationId(), location);
+
+         if (previous != null) {
+             changes.remove(previous.getShardVersion());
+         }
+
+         changes.put(location.getShardVersion(), location.getCustomerLocationId());
+     }
+ }
@@ -0,0 +1,202 @@
+ package wirelessmesh.domain;
+
+ import io.cloudstate.javasupport.EntityId;
+ import io.cloudstate.javasupport.eventsourced.CommandContext;
+ import io.cloudstate.javasupport.eventsourced.CommandHandler;
+ import io.cloudstate.javasupport.eventsourced.EventHandler;
+ import io.cloudstate.javasupport.eventsourced.EventSourcedEntity;
+ import io.cloudstate.javasupport.eventsourced.Snapshot;
+ import io.cloudstate.javasupport.eventsourced.SnapshotHandler;
+
+ import wirelessmesh.NightlightScheduler;
+ import wirelessmesh.RegistrySignature;
+ import wirelessmeshdomain.Wirelessmeshdomain.*;
+ import wirelessmeshservice.Wirelessmeshservice.*;
+
+ import java.time.Clock;
+ import java.util.ArrayList;
+ import java.util.HashMap;
+ import java.util.List;
+ import java.util.Map;
+ import java.util.concurrent.TimeUnit;
+ import java.util.stream.Collectors;
+
+ /**
+  * The leases of the nightlight schedulers on the shards of the schedule registry.
+  *
+  * Each scheduler claims its leases in one call, and is given a fair share of the shards among the schedulers whose
+  * leases are live, so that a shard has a single owner and the shards spread across the replicas. A scheduler holding
+  * more than its share, as when another replica starts, releases the excess, and a released shard is only handed on
+  * once the lease it was held under has run out.
+  *
+  * Only changes of owner are persisted. When each lease runs out is kept in memory and taken from this entity's own
+  * clock, so a renewal writes nothing to the eventlog and no claimant can extend a lease by its choice of time. Once
+  * recovered, the entity cannot tell how long the recorded owners have left, so it gives them a whole lease before any
+  * of their shards, or any released shard, is handed on.
+  */
+ @EventSourcedEntity(persistenceId = "nightlight-scheduler-leases", snapshotEvery = 100)
+ public class NightlightSchedulerLeaseEntity {
+
+     private static final long LEASE_MS = TimeUnit.SECONDS.toMillis(60);
+
+     private final long leaseMillis;
+     private final Clock clock;
+     private final RegistrySignature registrySignature;
+
+     /**
+      * This section contains the private state variables necessary for this entity.
+      */
+
+     private Map<String, String> owners = new HashMap<String, String>();
+
+     /**
+      * The leases of the schedulers and the shards waiting out a released lease, neither of them persisted.
+      */
+
+     private boolean leasesRestored = false;
+
+     private Map<String, Long> leaseExpiries = new HashMap<String, Long>();
+
+     private Map<String, Long> releaseExpiries = new HashMap<String, Long>();
+
+     /**
+      * Constructor.
+      * @param leaseGroupId The entity id will be the lease group, a single group leases every shard.
+      */
+     public NightlightSchedulerLeaseEntity(@EntityId String leaseGroupId) {
+         this(leaseGroupId, LEASE_MS, Clock.systemUTC(), RegistrySignature.fromEnvironment());
+     }
+
+     /**
+      * Constructor allowing the lease, the clock and the signature to be substituted, only one public constructor is
+      * allowed on an event sourced entity.
+      */
+     NightlightSchedulerLeaseEntity(String leaseGroupId, long leaseMillis, Clock clock,
+                                    RegistrySignature registrySignature) {
+         this.leaseMillis = leaseMillis;
+         this.clock = clock;
+         this.registrySignature = registrySignature;
+     }
+
+     /**
+      * This is the command handler for claiming or renewing the leases of a scheduler as defined in protobuf.
+      * @param claimScheduleShardsCommand the command message from protobuf
+      * @param ctx the application context
+      * @return the shards now leased to the scheduler
+      */
+     @CommandHandler
+     public ScheduleShardLeases claimScheduleShards(ClaimScheduleShardsCommand claimScheduleShardsCommand,
+                                                    CommandContext ctx) {
+         ScheduleShardLeases.Builder leases = ScheduleShardLeases.newBuilder().setLeaseMillis(leaseMillis);
+         String ownerId = claimScheduleShardsCommand.getOwnerId();
+
+         if (!registrySignature.verify(claimScheduleShardsCommand.toBuilder().clearSignature().build(),
+                 claimScheduleShardsCommand.getSignature())) {
+             ctx.fail("Schedule registry requests must be signed");
+         }
+         else if (ownerId.isEmpty()) {
+             ctx.fail("Owner id must be supplied");
+         }
+         else {
+             long now = clock.millis();
+             restoreLeases(now);
+             leaseExpiries.values().removeIf(expiry -> expiry <= now);
+             releaseExpiries.values().removeIf(expiry -> expiry <= now);
+             leaseExpiries.put(ownerId, now + leaseMillis);
+
+             int share = (NightlightScheduler.SHARD_COUNT + leaseExpiries.size() - 1) / leaseExpiries.size();
+             List<String> held = shardIds().stream()
+                     .filter(shardId -> ownerId.equals(owners.get(shardId)))
+                     .collect(Collectors.toList());
+             List<String> released = new ArrayList<String>(held.subList(Math.min(share, held.size()), held.size()));
+             List<String> acquired = shardIds().stream()
+                     .filter(this::isFree)
+                     .limit(Math.max(0, share - held.size()))
+                     .collect(Collectors.toList());
+
+             if (!acquired.isEmpty() || !released.isEmpty()) {
+                 ctx.emit(ScheduleShardOwnersChanged.newBuilder()
+                         .setOwnerId(ownerId)
+                         .setChangedAtMillis(now)
+                         .addAllAcquiredShardIds(acquired)
+                         .addAllReleasedShardIds(released)
+                         .build());
+
+                 // The owner may fire the released shards until its previous lease runs out.
+                 released.forEach(shardId -> releaseExpiries.put(shardId, now + leaseMillis));
+             }
+
+             held.removeAll(released);
+             leases.addAllShardIds(held).addAllShardIds(acquired);
+         }
+
+         return leases.build();
+     }
+
+     /**
+      * This is the event handler for a change in the owners of the shards. It is here we update current state due to
+      * successful storage to the eventlog.
+      *
+      * @param scheduleShardOwnersChanged the event previously emitted in the command handler, now safely stored.
+      */
+     @EventHandler
+     public void scheduleShardOwnersChanged(ScheduleShardOwnersChanged scheduleShardOwnersChanged) {
+         scheduleShardOwnersChanged.getAcquiredShardIdsList()
+                 .forEach(shardId -> owners.put(shardId, scheduleShardOwnersChanged.getOwnerId()));
+         scheduleShardOwnersChanged.getReleasedShardIdsList()
+                 .forEach(shardId -> owners.put(shardId, ""));
+     }
+
+     @Snapshot
+     public SchedulerLeasesSnapshot snapshot() {
+         return SchedulerLeasesSnapshot.newBuilder()
+                 .addAllOwners(owners.entrySet().stream()
+                         .map(e -> ScheduleShardOwner.newBuilder().setShardId(e.getKey()).setOwnerId(e.getValue()).build())
+                         .collect(Collectors.toList()))
+                 .build();
+     }
+
+     @SnapshotHandler
+     public void handleSnapshot(SchedulerLeasesSnapshot snapshot) {
+         this.owners = new HashMap<String, String>();
+         snapshot.getOwnersList().forEach(o -> owners.put(o.getShardId(), o.getOwnerId()));
+     }
+
+     /**
+      * Helper function to give every recorded owner, and every released shard, a whole lease on the first claim after
+      * recovery, as how long they had left was not persisted.
+      */
+     private void restoreLeases(long now) {
+         if (!leasesRestored) {
+             owners.forEach((shardId, ownerId) -> {
+                 if (ownerId.isEmpty()) {
+                     releaseExpiries.put(shardId, now + leaseMillis);
+                 }
+                 else {
+                     leaseExpiries.put(ownerId, now + leaseMillis);
+                 }
+             });
+
+             leasesRestored = true;
+         }
+     }
+
+     /**
+      * Helper function to check whether a shard can be handed to a scheduler, being neither leased nor waiting out a
+      * released lease.
+      */
+     private boolean isFree(String shardId) {
+         String ownerId = owners.getOrDefault(shardId, "");
+         return !leaseExpiries.containsKey(ownerId) && !releaseExpiries.containsKey(shardId);
+     }
+
+     private static List<String> shardIds() {
+         List<String> shardIds = new ArrayList<String>();
+
+         for (int shard = 0; shard < NightlightScheduler.SHARD_COUNT; shard++) {
+             shardIds.add(Integer.toString(shard));
+         }
+
+         return shardIds;
+     }
+ }
@@ -0,0 +1,265 @@
+package wirelessmesh;
+
+import org.testng.Assert;
+import org.testng.annotations.*;
+import org.mockito.*;
+
+import wirelessmesh.domain.InMemoryScheduleRegistry;
+import wirelessmeshservice.Wirelessmeshservice.ScheduledRoom;
+
+import java.io.IOException;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class NightlightSchedulerTest {
+
+    long midnight = TimeUnit.DAYS.toMillis(20000);
+    int dusk = 18 * 60 * 60;
+    int dawn = 6 * 60 * 60;
+
+    FakeClock clock;
+    DeviceService deviceService;
+    RegistrySignature registrySignature = new RegistrySignature("secret");
+    InMemoryScheduleRegistry registry;
+    NightlightScheduler scheduler;
+
+    @BeforeMethod
+    public void setUp() {
+        clock = new FakeClock(midnight);
+        deviceService = Mockito.mock(DeviceService.class);
+        registry = new InMemoryScheduleRegistry(TimeUnit.HOURS.toMillis(2), clock, registrySignature);
+        scheduler = new NightlightScheduler(deviceService, registry, registrySignature, clock, Runnable::run,
+                Runnable::run);
+    }
+
+    @Test
+    public void wheelExpiresAcrossLevelsTest() {
+        HierarchicalTimingWheel<Long> wheel = new HierarchicalTimingWheel<Long>(1, 0);
+        List<Long> deadlines = Arrays.asList(1L, 63L, 64L, 65L, 4095L, 4096L, 4097L, 300000L, 20000000L);
+
+        for (Long deadline : deadlines) {
+            wheel.schedule(deadline, deadline);
+        }
+
+        List<Long> expired = new ArrayList<Long>();
+
+        for (long now = 0; now <= 20000000L; now += 7) {
+            for (Long deadline : wheel.advanceTo(now)) {
+                Assert.assertTrue(deadline <= now && deadline > now - 7, "Expired " + deadline + " at " + now);
+                expired.add(deadline);
+            }
+        }
+
+        expired.addAll(wheel.advanceTo(20000007L));
+        Assert.assertEquals(expired, deadlines);
+        Assert.assertEquals(wheel.size(), 0);
+    }
+
+    @Test
+    public void wheelCancelTest() {
+        HierarchicalTimingWheel<String> wheel = new HierarchicalTimingWheel<String>(1000, 0);
+        HierarchicalTimingWheel.Timeout<String> kept = wheel.schedule(5000, "kept");
+        HierarchicalTimingWheel.Timeout<String> cancelled = wheel.schedule(5000, "cancelled");
+        wheel.schedule(0, "overdue");
+
+        Assert.assertTrue(cancelled.cancel());
+        Assert.assertFalse(cancelled.cancel());
+        Assert.assertEquals(wheel.size(), 2);
+
+        Assert.assertEquals(wheel.advanceTo(1000), Collections.singletonList("overdue"));
+        Assert.assertEquals(wheel.advanceTo(10000), Collections.singletonList("kept"));
+        Assert.assertFalse(kept.cancel());
+        Assert.assertEquals(wheel.size(), 0);
+    }
+
+    @Test
+    public void firesDailyTest() throws IOException {
+        update("customerId1", 1, scheduledRoom("schedule1", "bedroom", "deviceId1"));
+
+        advanceTo(midnight + TimeUnit.SECONDS.toMillis(dawn));
+        Mockito.verify(deviceService).setNightlight("accessToken", Arrays.asList("deviceId1"), false);
+
+        advanceTo(midnight + TimeUnit.SECONDS.toMillis(dusk));
+        Mockito.verify(deviceService).setNightlight("accessToken", Arrays.asList("deviceId1"), true);
+
+        advanceTo(midnight + TimeUnit.DAYS.toMillis(1) + TimeUnit.SECONDS.toMillis(dusk));
+        Mockito.verify(deviceService, Mockito.times(2)).setNightlight("accessToken", Arrays.asList("deviceId1"), false);
+        Mockito.verify(deviceService, Mockito.times(2)).setNightlight("accessToken", Arrays.asList("deviceId1"), true);
+    }
+
+    @Test
+    public void batchesByAccessTokenAndRoomTest() throws IOException {
+        update("customerId1", 1, scheduledRoom("schedule1", "bedroom", "deviceId1", "deviceId2"));
+        update("customerId2", 1, scheduledRoom("schedule1", "bedroom", "deviceId3"));
+        registry.update("customerId3", "otherToken", 1, scheduledRoom("schedule1", "bedroom", "deviceId4"));
+
+        advanceTo(midnight + TimeUnit.SECONDS.toMillis(dusk));
+
+        // Devices from both customer locations sharing the token go out together, in no particular order.
+        Mockito.verify(deviceService).setNightlight(Mockito.eq("accessToken"), Mockito.argThat(ids -> new HashSet<String>(ids)
+                .equals(new HashSet<String>(Arrays.asList("deviceId1", "deviceId2", "deviceId3")))), Mockito.eq(true));
+        Mockito.verify(deviceService).setNightlight("otherToken", Arrays.asList("deviceId4"), true);
+    }
+
+    @Test
+    public void chunksLargeBatchesTest() throws IOException {
+        String[] deviceIds = new String[120];
+
+        for (int i = 0; i < 120; i++) {
+            deviceIds[i] = "deviceId" + i;
+        }
+
+        update("customerId1", 1, scheduledRoom("schedule1", "hall", deviceIds));
+        advanceTo(midnight + TimeUnit.SECONDS.toMillis(dusk));
+
+        List<String> all = Arrays.asList(deviceIds);
+        Mockito.verify(deviceService).setNightlight("accessToken", all.subList(0, 50), true);
+        Mockito.verify(deviceService).setNightlight("accessToken", all.subList(50, 100), true);
+        Mockito.verify(deviceService).setNightlight("accessToken", all.subList(100, 120), true);
+    }
+
+    @Test
+    public void replaceSchedulesTest() throws IOException {
+        update("customerId1", 1, scheduledRoom("schedule1", "bedroom", "deviceId1"),
+                scheduledRoom("schedule2", "kitchen", "deviceId3"));
+        registry.update("customerId2", "otherToken", 1, scheduledRoom("schedule1", "bedroom", "deviceId4"));
+        scheduler.renewLeases();
+        Assert.assertEquals(scheduler.size(), 3);
+
+        // Only the changed location is replaced, and an older update arriving late is ignored.
+        update("customerId1", 2, scheduledRoom("schedule1", "bedroom", "deviceId1", "deviceId2"));
+        update("customerId1", 1, scheduledRoom("schedule2", "kitchen", "deviceId3"));
+        scheduler.renewLeases();
+        Assert.assertEquals(scheduler.size(), 2);
+
+        advanceTo(midnight + TimeUnit.DAYS.toMillis(1));
+        Mockito.verify(deviceService).setNightlight("accessToken", Arrays.asList("deviceId1", "deviceId2"), true);
+        Mockito.verify(deviceService).setNightlight("accessToken", Arrays.asList("deviceId1", "deviceId2"), false);
+        Mockito.verify(deviceService).setNightlight("otherToken", Arrays.asList("deviceId4"), true);
+        Mockito.verify(deviceService).setNightlight("otherToken", Arrays.asList("deviceId4"), false);
+        Mockito.verifyNoMoreInteractions(deviceService);
+    }
+
+    @Test
+    public void loadsLargeShardsInPagesTest() {
+        String shardId = NightlightScheduler.shardOf("customerId0");
+        int loaded = 0;
+
+        for (int i = 0; loaded < 250; i++) {
+            if (NightlightScheduler.shardOf("customerId" + i).equals(shardId)) {
+                update("customerId" + i, 1, scheduledRoom("schedule1", "bedroom", "deviceId" + i));
+                loaded++;
+            }
+        }
+
+        scheduler.renewLeases();
+        Assert.assertEquals(scheduler.size(), 250);
+    }
+
+    @Test
+    public void restartLoadsSchedulesFromRegistryTest() throws IOException {
+        update("customerId1", 1, scheduledRoom("schedule1", "bedroom", "deviceId1"));
+        advanceTo(midnight + TimeUnit.SECONDS.toMillis(dusk));
+        Mockito.verify(deviceService).setNightlight("accessToken", Arrays.asList("deviceId1"), true);
+
+        // The first scheduler goes away, a new one has only the registry to go on.
+        DeviceService restartedDeviceService = Mockito.mock(DeviceService.class);
+        NightlightScheduler restarted = new NightlightScheduler(restartedDeviceService, registry, registrySignature,
+                clock, Runnable::run, Runnable::run);
+
+        restarted.renewLeases();
+        Assert.assertEquals(restarted.size(), 0, "The lease of the first scheduler has not yet expired");
+
+        advanceTo(midnight + TimeUnit.DAYS.toMillis(1) + TimeUnit.SECONDS.toMillis(dusk), restarted);
+        Assert.assertEquals(restarted.size(), 1);
+        Mockito.verify(restartedDeviceService).setNightlight("accessToken", Arrays.asList("deviceId1"), false);
+        Mockito.verify(restartedDeviceService).setNightlight("accessToken", Arrays.asList("deviceId1"), true);
+    }
+
+    @Test
+    public void singleOwnerTest() throws IOException {
+        NightlightScheduler other = new NightlightScheduler(deviceService, registry, registrySignature, clock,
+                Runnable::run, Runnable::run);
+        update("customerId1", 1, scheduledRoom("schedule1", "bedroom", "deviceId1"));
+
+        // The shards are shared out, and each schedule fires from one of the schedulers.
+        advanceTo(midnight + TimeUnit.SECONDS.toMillis(dusk), scheduler, other);
+        Assert.assertEquals(scheduler.shardCount(), NightlightScheduler.SHARD_COUNT / 2);
+        Assert.assertEquals(other.shardCount(), NightlightScheduler.SHARD_COUNT / 2);
+        Assert.assertEquals(scheduler.size() + other.size(), 1);
+        Mockito.verify(deviceService).setNightlight("accessToken", Arrays.asList("deviceId1"), false);
+        Mockito.verify(deviceService).setNightlight("accessToken", Arrays.asList("deviceId1"), true);
+
+        // Renewals only persist changes of owner: the first claim, the release of half and its claim by the other.
+        Assert.assertEquals(registry.leaseEvents(), 3);
+
+        // Once the location is removed its schedules stop firing at the next renewal.
+        update("customerId1", 2);
+        advanceTo(midnight + TimeUnit.DAYS.toMillis(1) + TimeUnit.SECONDS.toMillis(dusk), scheduler, other);
+        Assert.assertEquals(scheduler.size() + other.size(), 0);
+        Assert.assertEquals(registry.leaseEvents(), 3);
+        Mockito.verifyNoMoreInteractions(deviceService);
+    }
+
+    private void update(String customerLocationId, long sequence, ScheduledRoom... schedules) {
+        registry.update(customerLocationId, "accessToken", sequence, schedules);
+    }
+
+    private ScheduledRoom scheduledRoom(String scheduleId, String room, String... deviceIds) {
+        return ScheduledRoom.newBuilder()
+                .setScheduleId(scheduleId)
+                .setRoom(room)
+                .setOnSecondOfDay(dusk)
+                .setOffSecondOfDay(dawn)
+                .addAllDeviceIds(Arrays.asList(deviceIds))
+                .build();
+    }
+
+    /**
+     * Step the clock an hour at a time, renewing leases and then ticking as the background threads would. The leases
+     * are made long to match, so a renewal still falls well within each lease.
+     */
+    private void advanceTo(long millis) {
+        advanceTo(millis, scheduler);
+    }
+
+    private void advanceTo(long millis, NightlightScheduler... schedulers) {
+        while (clock.millis() < millis) {
+            clock.now = Math.min(clock.now + TimeUnit.HOURS.toMillis(1), millis);
+            Arrays.stream(schedulers).forEach(NightlightScheduler::renewLeases);
+            Arrays.stream(schedulers).forEach(NightlightScheduler::tick);
+        }
+    }
+
+    private static class FakeClock extends Clock {
+
+        private long now;
+
+        private FakeClock(long now) {
+            this.now = now;
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public Instant instant() {
+            return Instant.ofEpochMilli(now);
+        }
+    }
+}
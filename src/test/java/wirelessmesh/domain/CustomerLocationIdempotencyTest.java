@@ -0,0 +1,241 @@
+package wirelessmesh.domain;
+
+import com.google.protobuf.ByteString;
+import io.cloudstate.javasupport.eventsourced.CommandContext;
+import org.testng.Assert;
+import org.testng.annotations.*;
+import org.mockito.*;
+
+import wirelessmesh.DeviceService;
+import wirelessmesh.PubsubService;
+import wirelessmesh.RegistrySignature;
+import wirelessmeshdomain.Wirelessmeshdomain.*;
+import wirelessmeshservice.Wirelessmeshservice.*;
+
+import java.io.IOException;
+import java.util.Collections;
+
+public class CustomerLocationIdempotencyTest {
+
+    String customerLocationId = "customerId1";
+    String accessToken = "accessToken";
+
+    DeviceService deviceService;
+    PubsubService pubsubService;
+
+    @BeforeMethod
+    public void setUp() {
+        deviceService = Mockito.mock(DeviceService.class);
+        pubsubService = Mockito.mock(PubsubService.class);
+    }
+
+    @Test
+    public void duplicateAddCustomerLocationTest() {
+        CustomerLocationEntity entity = new CustomerLocationEntity(customerLocationId, deviceService, pubsubService,
+                new RegistrySignature("secret"));
+        AddCustomerLocationCommand command = AddCustomerLocationCommand.newBuilder()
+                .setCustomerLocationId(customerLocationId)
+                .setAccessToken(accessToken)
+                .setIdempotencyKey("add-1")
+                .build();
+
+        addCustomerLocation(entity, command);
+
+        CommandContext retry = Mockito.mock(CommandContext.class);
+        entity.addCustomerLocation(command, retry);
+        Mockito.verifyNoInteractions(retry);
+        Mockito.verify(pubsubService, Mockito.times(1)).publish(Mockito.any(ByteString.class));
+    }
+
+    @Test
+    public void duplicateActivateDeviceTest() {
+        CustomerLocationEntity entity = createAndAddCustomerLocation();
+        ActivateDeviceCommand command = ActivateDeviceCommand.newBuilder()
+                .setCustomerLocationId(customerLocationId)
+                .setDeviceId("deviceId1")
+                .setIdempotencyKey("activate-1")
+                .build();
+
+        CommandContext context = Mockito.mock(CommandContext.class);
+        DeviceActivated activated = DeviceActivated.newBuilder()
+                .setCustomerLocationId(customerLocationId)
+                .setDeviceId("deviceId1")
+                .setIdempotencyKey("activate-1")
+                .setIdempotencyFingerprint(IdempotencyCache.fingerprint(command))
+                .build();
+
+        entity.activateDevice(command, context);
+        Mockito.verify(context).emit(activated);
+        entity.deviceActivated(activated); // Simulate event callback to drive state change.
+
+        CommandContext retry = Mockito.mock(CommandContext.class);
+        entity.activateDevice(command, retry);
+        Mockito.verifyNoInteractions(retry);
+
+        // A different key is a new request and still fails as before.
+        CommandContext other = Mockito.mock(CommandContext.class);
+        entity.activateDevice(command.toBuilder().setIdempotencyKey("activate-2").build(), other);
+        Mockito.verify(other).fail("Device already activated");
+    }
+
+    @Test
+    public void duplicateToggleNightlightTest() throws IOException {
+        CustomerLocationEntity entity = createAndAddCustomerLocation();
+        activateDevice(entity, "deviceId1");
+
+        ToggleNightlightCommand command = ToggleNightlightCommand.newBuilder()
+                .setCustomerLocationId(customerLocationId)
+                .setDeviceId("deviceId1")
+                .setIdempotencyKey("toggle-1")
+                .build();
+
+        NightlightToggled toggled = NightlightToggled.newBuilder()
+                .setDeviceId("deviceId1")
+                .setCustomerLocationId(customerLocationId)
+                .setNightlightOn(true)
+                .setIdempotencyKey("toggle-1")
+                .setIdempotencyFingerprint(IdempotencyCache.fingerprint(command))
+                .build();
+
+        CommandContext context = Mockito.mock(CommandContext.class);
+        entity.toggleNightlight(command, context);
+        Mockito.verify(context).emit(toggled);
+        entity.nightlightToggled(toggled); // Simulate event callback to drive state change.
+
+        CommandContext retry = Mockito.mock(CommandContext.class);
+        entity.toggleNightlight(command, retry);
+        Mockito.verifyNoInteractions(retry);
+        Mockito.verify(deviceService, Mockito.times(1))
+                .setNightlight(accessToken, Collections.singletonList("deviceId1"), true);
+
+        CustomerLocation customerLocation = entity.getCustomerLocation(GetCustomerLocationCommand.newBuilder()
+                .setCustomerLocationId(customerLocationId).build(), Mockito.mock(CommandContext.class));
+        Assert.assertTrue(customerLocation.getDevices(0).getNightlightOn());
+    }
+
+    @Test
+    public void commandsWithoutKeyAreNotDeduplicatedTest() throws IOException {
+        CustomerLocationEntity entity = createAndAddCustomerLocation();
+        activateDevice(entity, "deviceId1");
+
+        ToggleNightlightCommand command = ToggleNightlightCommand.newBuilder()
+                .setCustomerLocationId(customerLocationId)
+                .setDeviceId("deviceId1")
+                .build();
+
+        CommandContext first = Mockito.mock(CommandContext.class);
+        entity.toggleNightlight(command, first);
+        entity.nightlightToggled(NightlightToggled.newBuilder()
+                .setDeviceId("deviceId1")
+                .setCustomerLocationId(customerLocationId)
+                .setNightlightOn(true)
+                .build());
+
+        CommandContext second = Mockito.mock(CommandContext.class);
+        entity.toggleNightlight(command, second);
+        Mockito.verify(second).emit(NightlightToggled.newBuilder()
+                .setDeviceId("deviceId1")
+                .setCustomerLocationId(customerLocationId)
+                .setNightlightOn(false)
+                .build());
+
+        Mockito.verify(deviceService).setNightlight(accessToken, Collections.singletonList("deviceId1"), true);
+        Mockito.verify(deviceService).setNightlight(accessToken, Collections.singletonList("deviceId1"), false);
+    }
+
+    @Test
+    public void reusedKeyWithDifferentRequestTest() throws IOException {
+        CustomerLocationEntity entity = createAndAddCustomerLocation();
+        activateDevice(entity, "deviceId1");
+        activateDevice(entity, "deviceId2");
+
+        ToggleNightlightCommand command = ToggleNightlightCommand.newBuilder()
+                .setCustomerLocationId(customerLocationId)
+                .setDeviceId("deviceId1")
+                .setIdempotencyKey("key-1")
+                .build();
+
+        entity.toggleNightlight(command, Mockito.mock(CommandContext.class));
+        entity.nightlightToggled(NightlightToggled.newBuilder()
+                .setDeviceId("deviceId1")
+                .setCustomerLocationId(customerLocationId)
+                .setNightlightOn(true)
+                .setIdempotencyKey("key-1")
+                .setIdempotencyFingerprint(IdempotencyCache.fingerprint(command))
+                .build());
+
+        // The same key on the same command type but for another device is rejected rather than silently dropped.
+        CommandContext reused = Mockito.mock(CommandContext.class);
+        entity.toggleNightlight(command.toBuilder().setDeviceId("deviceId2").build(), reused);
+        Mockito.verify(reused).fail("Idempotency key reused with a different request");
+        Mockito.verify(reused, Mockito.never()).emit(Mockito.any());
+        Mockito.verify(deviceService, Mockito.never()).setNightlight(Mockito.eq(accessToken),
+                Mockito.eq(Collections.singletonList("deviceId2")), Mockito.anyBoolean());
+
+        // Keys are scoped to the command type, so the same key on another command type is a new request.
+        CommandContext otherType = Mockito.mock(CommandContext.class);
+        entity.activateDevice(ActivateDeviceCommand.newBuilder()
+                .setCustomerLocationId(customerLocationId)
+                .setDeviceId("deviceId3")
+                .setIdempotencyKey("key-1")
+                .build(), otherType);
+        Mockito.verify(otherType).emit(Mockito.any(DeviceActivated.class));
+    }
+
+    @Test
+    public void cacheEvictsOldestKeyTest() {
+        IdempotencyCache cache = new IdempotencyCache(2);
+        cache.record(ToggleNightlightCommand.getDescriptor(), "key1", "fingerprint1");
+        cache.record(ToggleNightlightCommand.getDescriptor(), "key2", "fingerprint2");
+        Assert.assertEquals(cache.fingerprintOf(ToggleNightlightCommand.getDescriptor(), "key1"), "fingerprint1");
+        Assert.assertNull(cache.fingerprintOf(ActivateDeviceCommand.getDescriptor(), "key1"));
+
+        cache.record(ToggleNightlightCommand.getDescriptor(), "key3", "fingerprint3");
+        Assert.assertNull(cache.fingerprintOf(ToggleNightlightCommand.getDescriptor(), "key1"));
+        Assert.assertEquals(cache.fingerprintOf(ToggleNightlightCommand.getDescriptor(), "key2"), "fingerprint2");
+        Assert.assertEquals(cache.fingerprintOf(ToggleNightlightCommand.getDescriptor(), "key3"), "fingerprint3");
+
+        cache.record(ToggleNightlightCommand.getDescriptor(), "", "fingerprint4");
+        Assert.assertNull(cache.fingerprintOf(ToggleNightlightCommand.getDescriptor(), ""));
+        Assert.assertEquals(cache.fingerprintOf(ToggleNightlightCommand.getDescriptor(), "key2"), "fingerprint2");
+    }
+
+    private CustomerLocationEntity createAndAddCustomerLocation() {
+        CustomerLocationEntity entity = new CustomerLocationEntity(customerLocationId, deviceService, pubsubService,
+                new RegistrySignature("secret"));
+        addCustomerLocation(entity, AddCustomerLocationCommand.newBuilder()
+                .setCustomerLocationId(customerLocationId)
+                .setAccessToken(accessToken)
+                .build());
+
+        return entity;
+    }
+
+    private void addCustomerLocation(CustomerLocationEntity entity, AddCustomerLocationCommand command) {
+        CommandContext context = Mockito.mock(CommandContext.class);
+        CustomerLocationAdded added = CustomerLocationAdded.newBuilder()
+                .setCustomerLocationId(command.getCustomerLocationId())
+                .setAccessToken(command.getAccessToken())
+                .setIdempotencyKey(command.getIdempotencyKey())
+                .setIdempotencyFingerprint(command.getIdempotencyKey().isEmpty() ? "" : IdempotencyCache.fingerprint(command))
+                .build();
+
+        entity.addCustomerLocation(command, context);
+        Mockito.verify(context).emit(added);
+        entity.customerLocationAdded(added); // Simulate event callback to drive state change.
+    }
+
+    private void activateDevice(CustomerLocationEntity entity, String deviceId) {
+        DeviceActivated activated = DeviceActivated.newBuilder()
+                .setCustomerLocationId(customerLocationId)
+                .setDeviceId(deviceId)
+                .build();
+
+        entity.activateDevice(ActivateDeviceCommand.newBuilder()
+                .setCustomerLocationId(customerLocationId)
+                .setDeviceId(deviceId)
+                .build(), Mockito.mock(CommandContext.class));
+
+        entity.deviceActivated(activated); // Simulate event callback to drive state change.
+    }
+}
@@ -0,0 +1,249 @@
+package wirelessmesh.domain;
+
+import io.cloudstate.javasupport.ServiceCall;
+import io.cloudstate.javasupport.ServiceCallFactory;
+import io.cloudstate.javasupport.ServiceCallRef;
+import io.cloudstate.javasupport.eventsourced.CommandContext;
+import org.testng.Assert;
+import org.testng.annotations.*;
+import org.mockito.*;
+
+import wirelessmesh.DeviceService;
+import wirelessmesh.NightlightScheduler;
+import wirelessmesh.PubsubService;
+import wirelessmesh.RegistrySignature;
+import wirelessmeshdomain.Wirelessmeshdomain.*;
+import wirelessmeshservice.Wirelessmeshservice.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+public class CustomerLocationScheduleTest {
+
+    String customerLocationId = "customerId1";
+    String accessToken = "accessToken";
+    String room = "bedroom";
+    int dusk = 18 * 60 * 60;
+    int dawn = 6 * 60 * 60;
+    long sequence;
+
+    ServiceCallRef<UpdateLocationSchedulesCommand> updateLocationSchedules;
+    ServiceCall registryCall;
+    RegistrySignature registrySignature = new RegistrySignature("secret");
+
+    @BeforeMethod
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        sequence = 0;
+        updateLocationSchedules = Mockito.mock(ServiceCallRef.class);
+        registryCall = Mockito.mock(ServiceCall.class);
+        Mockito.when(updateLocationSchedules.createCall(Mockito.any())).thenReturn(registryCall);
+    }
+
+    @Test
+    public void scheduleNightlightTest() {
+        CustomerLocationEntity entity = createAndAddCustomerLocation();
+        activateDeviceInRoom(entity, "deviceId1", room);
+        activateDeviceInRoom(entity, "deviceId2", "kitchen");
+
+        CommandContext context = nextContext();
+        NightlightScheduled scheduled = NightlightScheduled.newBuilder()
+                .setScheduleId("schedule1")
+                .setCustomerLocationId(customerLocationId)
+                .setRoom(room)
+                .setOnSecondOfDay(dusk)
+                .setOffSecondOfDay(dawn)
+                .build();
+
+        entity.scheduleNightlight(ScheduleNightlightCommand.newBuilder()
+                .setCustomerLocationId(customerLocationId)
+                .setScheduleId("schedule1")
+                .setRoom(room)
+                .setOnSecondOfDay(dusk)
+                .setOffSecondOfDay(dawn)
+                .build(), context);
+
+        Mockito.verify(context).emit(scheduled);
+        Mockito.verify(updateLocationSchedules).createCall(registryUpdate(1, scheduledRoom("deviceId1")));
+        Mockito.verify(context).effect(registryCall, true);
+        entity.nightlightScheduled(scheduled); // Simulate event callback to drive state change.
+
+        CustomerLocation customerLocation = entity.getCustomerLocation(GetCustomerLocationCommand.newBuilder()
+                .setCustomerLocationId(customerLocationId).build(), context);
+        Assert.assertEquals(customerLocation.getNightlightSchedulesList(), Collections.singletonList(
+                NightlightSchedule.newBuilder()
+                        .setScheduleId("schedule1")
+                        .setRoom(room)
+                        .setOnSecondOfDay(dusk)
+                        .setOffSecondOfDay(dawn)
+                        .build()));
+
+        // Moving a device into the room updates the registry with the new room membership.
+        entity.assignRoom(AssignRoomCommand.newBuilder()
+                .setCustomerLocationId(customerLocationId)
+                .setDeviceId("deviceId2")
+                .setRoom(room)
+                .build(), nextContext());
+
+        Mockito.verify(updateLocationSchedules).createCall(registryUpdate(2, scheduledRoom("deviceId1", "deviceId2")));
+
+        // As does removing a device from it.
+        entity.roomAssigned(RoomAssigned.newBuilder()
+                .setCustomerLocationId(customerLocationId)
+                .setDeviceId("deviceId2")
+                .setRoom(room)
+                .build()); // Simulate event callback to drive state change.
+        entity.removeDevice(RemoveDeviceCommand.newBuilder()
+                .setCustomerLocationId(customerLocationId)
+                .setDeviceId("deviceId1")
+                .build(), nextContext());
+
+        Mockito.verify(updateLocationSchedules).createCall(registryUpdate(3, scheduledRoom("deviceId2")));
+    }
+
+    @Test
+    public void scheduleNightlightValidationTest() {
+        CustomerLocationEntity entity = createAndAddCustomerLocation();
+        CommandContext context = nextContext();
+
+        entity.scheduleNightlight(ScheduleNightlightCommand.newBuilder()
+                .setCustomerLocationId(customerLocationId)
+                .setScheduleId("schedule1")
+                .setRoom(room)
+                .setOnSecondOfDay(24 * 60 * 60)
+                .build(), context);
+
+        Mockito.verify(context).fail("Schedule times must be a second of the day");
+
+        // Equal times would put both transitions on the same tick, leaving the final state to chance.
+        entity.scheduleNightlight(ScheduleNightlightCommand.newBuilder()
+                .setCustomerLocationId(customerLocationId)
+                .setScheduleId("schedule1")
+                .setRoom(room)
+                .setOnSecondOfDay(dusk)
+                .setOffSecondOfDay(dusk)
+                .build(), context);
+
+        Mockito.verify(context).fail("Schedule on and off times must differ");
+        Mockito.verify(context, Mockito.never()).emit(Mockito.any());
+        Mockito.verify(context, Mockito.never()).effect(Mockito.any(), Mockito.anyBoolean());
+    }
+
+    @Test
+    public void cancelNightlightScheduleTest() {
+        CustomerLocationEntity entity = createAndAddCustomerLocation();
+        entity.nightlightScheduled(NightlightScheduled.newBuilder()
+                .setScheduleId("schedule1")
+                .setCustomerLocationId(customerLocationId)
+                .setRoom(room)
+                .setOnSecondOfDay(dusk)
+                .setOffSecondOfDay(dawn)
+                .build());
+
+        CommandContext context = nextContext();
+        NightlightScheduleCancelled cancelled = NightlightScheduleCancelled.newBuilder()
+                .setScheduleId("schedule1")
+                .setCustomerLocationId(customerLocationId)
+                .build();
+
+        entity.cancelNightlightSchedule(CancelNightlightScheduleCommand.newBuilder()
+                .setCustomerLocationId(customerLocationId)
+                .setScheduleId("schedule1")
+                .build(), context);
+
+        Mockito.verify(context).emit(cancelled);
+        Mockito.verify(updateLocationSchedules).createCall(registryUpdate(1));
+        Mockito.verify(context).effect(registryCall, true);
+        entity.nightlightScheduleCancelled(cancelled); // Simulate event callback to drive state change.
+
+        CommandContext again = nextContext();
+        entity.cancelNightlightSchedule(CancelNightlightScheduleCommand.newBuilder()
+                .setCustomerLocationId(customerLocationId)
+                .setScheduleId("schedule1")
+                .build(), again);
+        Mockito.verify(again).fail("Schedule does not exist");
+    }
+
+    @Test
+    public void removeCustomerLocationCancelsSchedulesTest() {
+        CustomerLocationEntity entity = createAndAddCustomerLocation();
+        entity.nightlightScheduled(NightlightScheduled.newBuilder()
+                .setScheduleId("schedule1")
+                .setCustomerLocationId(customerLocationId)
+                .setRoom(room)
+                .setOnSecondOfDay(dusk)
+                .setOffSecondOfDay(dawn)
+                .build());
+
+        CommandContext context = nextContext();
+        entity.removeCustomerLocation(RemoveCustomerLocationCommand.newBuilder()
+                .setCustomerLocationId(customerLocationId)
+                .build(), context);
+
+        Mockito.verify(updateLocationSchedules).createCall(registryUpdate(1));
+        Mockito.verify(context).effect(registryCall, true);
+    }
+
+    private UpdateLocationSchedulesCommand registryUpdate(long sequence, ScheduledRoom... schedules) {
+        UpdateLocationSchedulesCommand update = UpdateLocationSchedulesCommand.newBuilder()
+                .setShardId(NightlightScheduler.shardOf(customerLocationId))
+                .setLocationSchedules(LocationSchedules.newBuilder()
+                        .setCustomerLocationId(customerLocationId)
+                        .setAccessToken(accessToken)
+                        .setSequence(sequence)
+                        .addAllSchedules(Arrays.asList(schedules)))
+                .build();
+
+        return update.toBuilder().setSignature(registrySignature.sign(update)).build();
+    }
+
+    private ScheduledRoom scheduledRoom(String... deviceIds) {
+        return ScheduledRoom.newBuilder()
+                .setScheduleId("schedule1")
+                .setRoom(room)
+                .setOnSecondOfDay(dusk)
+                .setOffSecondOfDay(dawn)
+                .addAllDeviceIds(Arrays.asList(deviceIds))
+                .build();
+    }
+
+    /**
+     * A context for a single command, with the next sequence number and the registry service to hand.
+     */
+    private CommandContext nextContext() {
+        CommandContext context = Mockito.mock(CommandContext.class);
+        ServiceCallFactory serviceCallFactory = Mockito.mock(ServiceCallFactory.class);
+
+        Mockito.when(context.sequenceNumber()).thenReturn(++sequence);
+        Mockito.when(context.serviceCallFactory()).thenReturn(serviceCallFactory);
+        Mockito.when(serviceCallFactory.lookup("wirelessmeshservice.NightlightScheduleRegistryService",
+                "UpdateLocationSchedules", UpdateLocationSchedulesCommand.class)).thenReturn(updateLocationSchedules);
+
+        return context;
+    }
+
+    private CustomerLocationEntity createAndAddCustomerLocation() {
+        CustomerLocationEntity entity = new CustomerLocationEntity(customerLocationId,
+                Mockito.mock(DeviceService.class), Mockito.mock(PubsubService.class), registrySignature);
+
+        entity.customerLocationAdded(CustomerLocationAdded.newBuilder()
+                .setCustomerLocationId(customerLocationId)
+                .setAccessToken(accessToken)
+                .build());
+
+        return entity;
+    }
+
+    private void activateDeviceInRoom(CustomerLocationEntity entity, String deviceId, String room) {
+        entity.deviceActivated(DeviceActivated.newBuilder()
+                .setCustomerLocationId(customerLocationId)
+                .setDeviceId(deviceId)
+                .build());
+
+        entity.roomAssigned(RoomAssigned.newBuilder()
+                .setCustomerLocationId(customerLocationId)
+                .setDeviceId(deviceId)
+                .setRoom(room)
+                .build());
+    }
+}
@@ -0,0 +1,104 @@
+package wirelessmesh.domain;
+
+import io.cloudstate.javasupport.eventsourced.CommandContext;
+
+import wirelessmesh.NightlightScheduler;
+import wirelessmesh.RegistrySignature;
+import wirelessmesh.ScheduleRegistryClient;
+import wirelessmeshdomain.Wirelessmeshdomain.*;
+import wirelessmeshservice.Wirelessmeshservice.*;
+
+import java.lang.reflect.Proxy;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+
+/**
+ * The schedule registry and the scheduler leases held in memory, for driving schedulers in tests. The events emitted
+ * by a command are applied once its handler has returned, as the proxy does, and a failed command throws.
+ */
+public class InMemoryScheduleRegistry implements ScheduleRegistryClient {
+
+    private final RegistrySignature registrySignature;
+
+    private final NightlightSchedulerLeaseEntity leases;
+
+    private final Map<String, NightlightScheduleRegistryEntity> shards =
+            new HashMap<String, NightlightScheduleRegistryEntity>();
+
+    private int leaseEvents = 0;
+
+    public InMemoryScheduleRegistry(long leaseMillis, Clock clock, RegistrySignature registrySignature) {
+        this.registrySignature = registrySignature;
+        this.leases = new NightlightSchedulerLeaseEntity(NightlightScheduler.LEASE_GROUP_ID, leaseMillis, clock,
+                registrySignature);
+    }
+
+    @Override
+    public ScheduleShardLeases claimScheduleShards(ClaimScheduleShardsCommand command) {
+        return handle(command, leases::claimScheduleShards, event -> {
+            leaseEvents++;
+            leases.scheduleShardOwnersChanged((ScheduleShardOwnersChanged) event);
+        });
+    }
+
+    @Override
+    public ScheduleShardChanges getScheduleShardChanges(GetScheduleShardChangesCommand command) {
+        return handle(command, shard(command.getShardId())::getScheduleShardChanges, event -> { });
+    }
+
+    /**
+     * Replace the schedules of a customer location, as the customer location would.
+     */
+    public void update(String customerLocationId, String accessToken, long sequence, ScheduledRoom... schedules) {
+        UpdateLocationSchedulesCommand update = UpdateLocationSchedulesCommand.newBuilder()
+                .setShardId(NightlightScheduler.shardOf(customerLocationId))
+                .setLocationSchedules(LocationSchedules.newBuilder()
+                        .setCustomerLocationId(customerLocationId)
+                        .setAccessToken(accessToken)
+                        .setSequence(sequence)
+                        .addAllSchedules(Arrays.asList(schedules)))
+                .build();
+
+        NightlightScheduleRegistryEntity shard = shard(update.getShardId());
+        handle(update.toBuilder().setSignature(registrySignature.sign(update)).build(), shard::updateLocationSchedules,
+                event -> shard.locationSchedulesUpdated((LocationSchedulesUpdated) event));
+    }
+
+    /**
+     * @return the number of events persisted by the scheduler leases.
+     */
+    public int leaseEvents() {
+        return leaseEvents;
+    }
+
+    private NightlightScheduleRegistryEntity shard(String shardId) {
+        return shards.computeIfAbsent(shardId, k -> new NightlightScheduleRegistryEntity(shardId, registrySignature));
+    }
+
+    private static <C, R> R handle(C command, BiFunction<C, CommandContext, R> handler, Consumer<Object> applyEvent) {
+        List<Object> events = new ArrayList<Object>();
+
+        // A plain proxy, a mock would record every one of the many calls made by a scheduler.
+        CommandContext context = (CommandContext) Proxy.newProxyInstance(CommandContext.class.getClassLoader(),
+                new Class<?>[] { CommandContext.class }, (proxy, method, args) -> {
+                    if (method.getName().equals("emit")) {
+                        events.add(args[0]);
+                    }
+                    else if (method.getName().equals("fail")) {
+                        throw new IllegalArgumentException((String) args[0]);
+                    }
+
+                    return null;
+                });
+
+        R reply = handler.apply(command, context);
+        events.forEach(applyEvent);
+        return reply;
+    }
+}
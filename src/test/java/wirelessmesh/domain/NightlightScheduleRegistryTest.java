@@ -0,0 +1,206 @@
+package wirelessmesh.domain;
+
+import io.cloudstate.javasupport.eventsourced.CommandContext;
+import org.testng.Assert;
+import org.testng.annotations.*;
+import org.mockito.*;
+
+import wirelessmesh.NightlightScheduler;
+import wirelessmesh.RegistrySignature;
+import wirelessmeshdomain.Wirelessmeshdomain.*;
+import wirelessmeshservice.Wirelessmeshservice.*;
+
+import java.time.Clock;
+import java.util.concurrent.TimeUnit;
+
+public class NightlightScheduleRegistryTest {
+
+    long leaseMillis = TimeUnit.SECONDS.toMillis(60);
+
+    RegistrySignature registrySignature = new RegistrySignature("secret");
+    Clock clock;
+
+    @BeforeMethod
+    public void setUp() {
+        clock = Mockito.mock(Clock.class);
+        Mockito.when(clock.millis()).thenReturn(0L);
+    }
+
+    @Test
+    public void unsignedUpdateRefusedTest() {
+        String shardId = NightlightScheduler.shardOf("customerId1");
+        NightlightScheduleRegistryEntity entity = new NightlightScheduleRegistryEntity(shardId, registrySignature);
+        UpdateLocationSchedulesCommand update = update(shardId, "customerId1", Long.MAX_VALUE);
+
+        CommandContext context = Mockito.mock(CommandContext.class);
+        entity.updateLocationSchedules(update, context);
+        Mockito.verify(context).fail("Schedule registry requests must be signed");
+        Mockito.verify(context, Mockito.never()).emit(Mockito.any());
+
+        context = Mockito.mock(CommandContext.class);
+        entity.updateLocationSchedules(update.toBuilder().setSignature(new RegistrySignature("guess").sign(update))
+                .build(), context);
+        Mockito.verify(context).fail("Schedule registry requests must be signed");
+    }
+
+    @Test
+    public void wrongShardRefusedTest() {
+        String shardId = NightlightScheduler.shardOf("customerId1");
+        String otherShardId = Integer.toString((Integer.parseInt(shardId) + 1) % NightlightScheduler.SHARD_COUNT);
+        NightlightScheduleRegistryEntity entity = new NightlightScheduleRegistryEntity(otherShardId,
+                registrySignature);
+        UpdateLocationSchedulesCommand update = update(otherShardId, "customerId1", 1);
+
+        CommandContext context = Mockito.mock(CommandContext.class);
+        entity.updateLocationSchedules(update.toBuilder().setSignature(registrySignature.sign(update)).build(),
+                context);
+        Mockito.verify(context).fail("Customer location does not belong to this shard");
+        Mockito.verify(context, Mockito.never()).emit(Mockito.any());
+    }
+
+    @Test
+    public void unsignedFetchRefusedTest() {
+        CommandContext context = Mockito.mock(CommandContext.class);
+        ScheduleShardChanges changes = new NightlightScheduleRegistryEntity("0", registrySignature)
+                .getScheduleShardChanges(GetScheduleShardChangesCommand.newBuilder().setShardId("0").build(), context);
+
+        Mockito.verify(context).fail("Schedule registry requests must be signed");
+        Assert.assertEquals(changes.getLocationsCount(), 0);
+    }
+
+    @Test
+    public void changesPagedTest() {
+        InMemoryScheduleRegistry registry = new InMemoryScheduleRegistry(leaseMillis, clock, registrySignature);
+        String shardId = NightlightScheduler.shardOf("customerId0");
+        String lastLocationId = "";
+        int added = 0;
+
+        for (int i = 0; added < 150; i++) {
+            if (NightlightScheduler.shardOf("customerId" + i).equals(shardId)) {
+                lastLocationId = "customerId" + i;
+                registry.update(lastLocationId, "accessToken", 1);
+                added++;
+            }
+        }
+
+        ScheduleShardChanges first = registry.getScheduleShardChanges(changes(shardId, 0));
+        Assert.assertEquals(first.getLocationsCount(), 100);
+        Assert.assertTrue(first.getMore());
+        Assert.assertEquals(first.getVersion(), 100);
+
+        ScheduleShardChanges second = registry.getScheduleShardChanges(changes(shardId, first.getVersion()));
+        Assert.assertEquals(second.getLocationsCount(), 50);
+        Assert.assertFalse(second.getMore());
+        Assert.assertEquals(second.getVersion(), 150);
+
+        // A change moves the location to the end, and is all there is to fetch.
+        registry.update("customerId0", "accessToken", 2);
+        ScheduleShardChanges third = registry.getScheduleShardChanges(changes(shardId, second.getVersion()));
+        Assert.assertEquals(third.getLocationsCount(), 1);
+        Assert.assertEquals(third.getLocations(0).getCustomerLocationId(), "customerId0");
+        Assert.assertEquals(third.getVersion(), 151);
+
+        // A stale update changes nothing.
+        registry.update(lastLocationId, "accessToken", 1);
+        Assert.assertEquals(registry.getScheduleShardChanges(changes(shardId, third.getVersion())).getLocationsCount(), 0);
+    }
+
+    @Test
+    public void fairShareTest() {
+        InMemoryScheduleRegistry registry = new InMemoryScheduleRegistry(leaseMillis, clock, registrySignature);
+
+        Assert.assertEquals(registry.claimScheduleShards(claim("owner1")).getShardIdsCount(),
+                NightlightScheduler.SHARD_COUNT);
+        Assert.assertEquals(registry.claimScheduleShards(claim("owner2")).getShardIdsCount(), 0);
+
+        // The first owner gives up half at its next renewal, the second gets them once that lease has run out.
+        Mockito.when(clock.millis()).thenReturn(TimeUnit.SECONDS.toMillis(20));
+        Assert.assertEquals(registry.claimScheduleShards(claim("owner1")).getShardIdsCount(),
+                NightlightScheduler.SHARD_COUNT / 2);
+        Assert.assertEquals(registry.claimScheduleShards(claim("owner2")).getShardIdsCount(), 0);
+
+        Mockito.when(clock.millis()).thenReturn(TimeUnit.SECONDS.toMillis(40));
+        Assert.assertEquals(registry.claimScheduleShards(claim("owner1")).getShardIdsCount(),
+                NightlightScheduler.SHARD_COUNT / 2);
+        Assert.assertEquals(registry.claimScheduleShards(claim("owner2")).getShardIdsCount(), 0);
+
+        Mockito.when(clock.millis()).thenReturn(TimeUnit.SECONDS.toMillis(80));
+        Assert.assertEquals(registry.claimScheduleShards(claim("owner1")).getShardIdsCount(),
+                NightlightScheduler.SHARD_COUNT / 2);
+        Assert.assertEquals(registry.claimScheduleShards(claim("owner2")).getShardIdsCount(),
+                NightlightScheduler.SHARD_COUNT / 2);
+        Assert.assertEquals(registry.leaseEvents(), 3);
+
+        // Renewals that change no owner are not persisted.
+        Mockito.when(clock.millis()).thenReturn(TimeUnit.SECONDS.toMillis(100));
+        registry.claimScheduleShards(claim("owner1"));
+        registry.claimScheduleShards(claim("owner2"));
+        Assert.assertEquals(registry.leaseEvents(), 3);
+    }
+
+    @Test
+    public void unsignedClaimRefusedTest() {
+        NightlightSchedulerLeaseEntity entity = new NightlightSchedulerLeaseEntity(
+                NightlightScheduler.LEASE_GROUP_ID, leaseMillis, clock, registrySignature);
+
+        CommandContext context = Mockito.mock(CommandContext.class);
+        ScheduleShardLeases leases = entity.claimScheduleShards(ClaimScheduleShardsCommand.newBuilder()
+                .setLeaseGroupId(NightlightScheduler.LEASE_GROUP_ID)
+                .setOwnerId("owner1")
+                .build(), context);
+
+        Mockito.verify(context).fail("Schedule registry requests must be signed");
+        Assert.assertEquals(leases.getShardIdsCount(), 0);
+    }
+
+    @Test
+    public void recoveredOwnersKeepTheirLeaseTest() {
+        NightlightSchedulerLeaseEntity entity = new NightlightSchedulerLeaseEntity(
+                NightlightScheduler.LEASE_GROUP_ID, leaseMillis, clock, registrySignature);
+
+        // Recovered long after the event, the owner is still given a whole lease from the first claim.
+        entity.scheduleShardOwnersChanged(ScheduleShardOwnersChanged.newBuilder()
+                .setOwnerId("owner1")
+                .setChangedAtMillis(0)
+                .addAcquiredShardIds("0")
+                .build());
+        Mockito.when(clock.millis()).thenReturn(TimeUnit.HOURS.toMillis(1));
+
+        CommandContext context = Mockito.mock(CommandContext.class);
+        ScheduleShardLeases leases = entity.claimScheduleShards(claim("owner2"), context);
+        Assert.assertEquals(leases.getShardIdsCount(), NightlightScheduler.SHARD_COUNT / 2);
+        Assert.assertFalse(leases.getShardIdsList().contains("0"));
+
+        Mockito.when(clock.millis()).thenReturn(TimeUnit.HOURS.toMillis(1) + leaseMillis);
+        context = Mockito.mock(CommandContext.class);
+        Assert.assertTrue(entity.claimScheduleShards(claim("owner2"), context).getShardIdsList().contains("0"));
+    }
+
+    private UpdateLocationSchedulesCommand update(String shardId, String customerLocationId, long sequence) {
+        return UpdateLocationSchedulesCommand.newBuilder()
+                .setShardId(shardId)
+                .setLocationSchedules(LocationSchedules.newBuilder()
+                        .setCustomerLocationId(customerLocationId)
+                        .setAccessToken("accessToken")
+                        .setSequence(sequence))
+                .build();
+    }
+
+    private GetScheduleShardChangesCommand changes(String shardId, long sinceVersion) {
+        GetScheduleShardChangesCommand command = GetScheduleShardChangesCommand.newBuilder()
+                .setShardId(shardId)
+                .setSinceVersion(sinceVersion)
+                .build();
+
+        return command.toBuilder().setSignature(registrySignature.sign(command)).build();
+    }
+
+    private ClaimScheduleShardsCommand claim(String ownerId) {
+        ClaimScheduleShardsCommand command = ClaimScheduleShardsCommand.newBuilder()
+                .setLeaseGroupId(NightlightScheduler.LEASE_GROUP_ID)
+                .setOwnerId(ownerId)
+                .build();
+
+        return command.toBuilder().setSignature(registrySignature.sign(command)).build();
+    }
+}